@@ -0,0 +1,89 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// Append-only record of completed pieces in the peer's folder: one 4-byte piece index per verified piece.
+// A torn last record (crash mid-append) is ignored; on restart the surviving entries are re-verified and the
+// journal is rewritten with just those (checkpoint), so it never grows beyond one entry per piece.
+public class BitfieldJournal implements Closeable {
+    private static final int RECORD_SIZE = 4;
+
+    private final File file;
+    private FileChannel channel;
+
+    public BitfieldJournal(File file) {
+        this.file = file;
+    }
+
+    // Pieces recorded by an earlier run, in the order they completed (duplicates and bad indexes skipped)
+    public List<Integer> restore(int totalPieces) throws IOException {
+        List<Integer> pieces = new ArrayList<>();
+        if (!file.exists()) {
+            return pieces;
+        }
+        try (FileChannel reader = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer records = ByteBuffer.allocate((int) (reader.size() - reader.size() % RECORD_SIZE));
+            while (records.hasRemaining() && reader.read(records) != -1) {
+                // Keep reading until the whole journal is in memory
+            }
+            records.flip();
+
+            BitSet seen = new BitSet(totalPieces);
+            while (records.remaining() >= RECORD_SIZE) {
+                int pieceIndex = records.getInt();
+                if (pieceIndex >= 0 && pieceIndex < totalPieces && !seen.get(pieceIndex)) {
+                    seen.set(pieceIndex);
+                    pieces.add(pieceIndex);
+                }
+            }
+        }
+        return pieces;
+    }
+
+    // Replace the journal with exactly these pieces and keep it open for appends
+    public synchronized void checkpoint(Collection<Integer> pieces) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileChannel writer = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer records = ByteBuffer.allocate(pieces.size() * RECORD_SIZE);
+            for (int pieceIndex : pieces) {
+                records.putInt(pieceIndex);
+            }
+            records.flip();
+            while (records.hasRemaining()) {
+                writer.write(records);
+            }
+            writer.force(false);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Cannot replace " + file.getPath());
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Record a verified piece. Not forced to disk: a piece lost from the journal is only downloaded again, and
+    // every entry is re-verified on restart anyway.
+    public synchronized void append(int pieceIndex) throws IOException {
+        if (channel == null) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).putInt(pieceIndex);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
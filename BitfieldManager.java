@@ -1,64 +1,107 @@
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class BitfieldManager {
 
-    private byte[] bitfield;
+    // Piece i is bit (i % 64) of word (i / 64); 64 pieces are tested per word operation
+    private final AtomicLongArray words;
+    private final AtomicInteger completedPieces = new AtomicInteger();
     private int totalPieces;
     private int pieceSize;
-    private int fileSize;
+    private long fileSize;
 
     // Constructor to initialize the bitfield manager
-    public BitfieldManager(int fileSize, int pieceSize) {
+    public BitfieldManager(long fileSize, int pieceSize) {
+        this(fileSize, pieceSize, Math.toIntExact((fileSize + pieceSize - 1) / pieceSize)); // Calculate total pieces
+    }
+
+    private BitfieldManager(long fileSize, int pieceSize, int totalPieces) {
         this.fileSize = fileSize;
         this.pieceSize = pieceSize;
-        this.totalPieces = (int) Math.ceil((double) fileSize / pieceSize); // Calculate total pieces
+        this.totalPieces = totalPieces;
+        this.words = new AtomicLongArray((totalPieces + 63) >>> 6);
+    }
 
-        this.bitfield = new byte[(int) Math.ceil((double) totalPieces / 8)];
+    // Build a neighbor's bitfield from the big-endian wire encoding of a BITFIELD message
+    public static BitfieldManager fromBytes(int totalPieces, byte[] bitfield) {
+        BitfieldManager peerBitfield = new BitfieldManager(0, 0, totalPieces);
+        peerBitfield.updatePeerBitfield(bitfield);
+        return peerBitfield;
     }
 
     public void setAllPieces() {
-        Arrays.fill(this.bitfield, (byte) 1); // Set all bits to 1 to represent that all pieces are available
+        for (int i = 0; i < words.length(); i++) {
+            long previous = words.getAndSet(i, wordMask(i));
+            completedPieces.addAndGet(Long.bitCount(wordMask(i) & ~previous));
+        }
     }
 
-    // Set the bit for a specific piece index (mark the piece as downloaded)
-    public void setPiece(int pieceIndex) {
-        if (pieceIndex >= 0 && pieceIndex < totalPieces) {
-            int byteIndex = pieceIndex / 8;
-            int bitPosition = pieceIndex % 8;
-
-            bitfield[byteIndex] |= (1 << (7 - bitPosition));
+    // Set the bit for a specific piece index (mark the piece as downloaded).
+    // Lock-free; returns true only for the thread that actually flipped the bit.
+    public boolean setPiece(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= totalPieces) {
+            return false;
         }
+        int wordIndex = pieceIndex >>> 6;
+        long mask = 1L << pieceIndex;
+        long current;
+        do {
+            current = words.get(wordIndex);
+            if ((current & mask) != 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(wordIndex, current, current | mask));
+        completedPieces.incrementAndGet();
+        return true;
     }
 
     // Check if a specific piece is already downloaded (if the bit is set to 1)
     public boolean hasPiece(int pieceIndex) {
         if (pieceIndex >= 0 && pieceIndex < totalPieces) {
-            int byteIndex = pieceIndex / 8;
-            int bitPosition = pieceIndex % 8;
-
-            return (bitfield[byteIndex] & (1 << (7 - bitPosition))) != 0;
+            return (words.get(pieceIndex >>> 6) & (1L << pieceIndex)) != 0;
         }
         return false;
     }
 
-    // Get the current bitfield (used when sending the bitfield to other peers)
+    // Get the current bitfield in wire format (used when sending the bitfield to other peers):
+    // piece 0 is the high bit of byte 0, spare bits at the end are 0
     public byte[] getBitfield() {
+        byte[] bitfield = new byte[getBitfieldLength()];
+        for (int byteIndex = 0; byteIndex < bitfield.length; byteIndex++) {
+            int bits = (int) (words.get(byteIndex >>> 3) >>> ((byteIndex & 7) * 8)) & 0xFF;
+            bitfield[byteIndex] = (byte) (Integer.reverse(bits) >>> 24);
+        }
         return bitfield;
     }
 
     // Get the bitfield length (used to ensure the size is correct when exchanging bitfields)
     public int getBitfieldLength() {
-        return bitfield.length;
+        return (totalPieces + 7) / 8;
     }
 
     // Update the peer's bitfield with a new bitfield received from another peer
     public void updatePeerBitfield(byte[] receivedBitfield) {
         // Ensure the received bitfield is the same length as the current one
-        if (receivedBitfield.length == bitfield.length) {
-            System.arraycopy(receivedBitfield, 0, bitfield, 0, bitfield.length);
-        } else {
+        if (receivedBitfield.length != getBitfieldLength()) {
             System.err.println("Error: Received bitfield length mismatch.");
+            return;
+        }
+
+        int count = 0;
+        for (int wordIndex = 0; wordIndex < words.length(); wordIndex++) {
+            long word = 0;
+            for (int b = 0; b < 8; b++) {
+                int byteIndex = wordIndex * 8 + b;
+                if (byteIndex < receivedBitfield.length) {
+                    long bits = Integer.reverse(receivedBitfield[byteIndex] & 0xFF) >>> 24;
+                    word |= bits << (b * 8);
+                }
+            }
+            word &= wordMask(wordIndex); // Ignore spare bits a sloppy peer might set
+            words.set(wordIndex, word);
+            count += Long.bitCount(word);
         }
+        completedPieces.set(count);
     }
 
     // Get the total number of pieces the peer needs to download
@@ -66,14 +109,65 @@ public class BitfieldManager {
         return totalPieces;
     }
 
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
     // Check if the peer has downloaded the entire file (all bits are set to 1)
     public boolean hasCompleteFile() {
-        for (int i = 0; i < totalPieces; i++) {
-            if (!hasPiece(i)) {
-                return false;
+        return completedPieces.get() == totalPieces;
+    }
+
+    // Number of pieces downloaded so far
+    public int getPieceCount() {
+        return completedPieces.get();
+    }
+
+    // First missing piece at or after fromIndex, or -1
+    public int nextClearBit(int fromIndex) {
+        for (int wordIndex = fromIndex >>> 6; fromIndex < totalPieces && wordIndex < words.length(); wordIndex++) {
+            long missing = ~words.get(wordIndex) & wordMask(wordIndex);
+            if (wordIndex == fromIndex >>> 6) {
+                missing &= -1L << fromIndex;
+            }
+            if (missing != 0) {
+                return (wordIndex << 6) + Long.numberOfTrailingZeros(missing);
             }
         }
-        return true;
+        return -1;
+    }
+
+    // First piece at or after fromIndex that this bitfield has and the other lacks, or -1
+    public int nextSetBitAndNot(BitfieldManager other, int fromIndex) {
+        for (int wordIndex = fromIndex >>> 6; fromIndex < totalPieces && wordIndex < words.length(); wordIndex++) {
+            long word = words.get(wordIndex) & ~other.getWord(wordIndex);
+            if (wordIndex == fromIndex >>> 6) {
+                word &= -1L << fromIndex;
+            }
+            if (word != 0) {
+                return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+            }
+        }
+        return -1;
+    }
+
+    // Number of pieces this bitfield has that the other lacks (this AND NOT other), one popcount per word
+    public int countAndNot(BitfieldManager other) {
+        int count = 0;
+        for (int wordIndex = 0; wordIndex < words.length(); wordIndex++) {
+            count += Long.bitCount(words.get(wordIndex) & ~other.getWord(wordIndex));
+        }
+        return count;
+    }
+
+    public long getWord(int wordIndex) {
+        return wordIndex < words.length() ? words.get(wordIndex) : 0L;
+    }
+
+    // Bits of a word that correspond to real pieces
+    private long wordMask(int wordIndex) {
+        int piecesInWord = Math.min(64, totalPieces - (wordIndex << 6));
+        return piecesInWord == 64 ? -1L : (1L << piecesInWord) - 1;
     }
 
     // Debugging: Print the bitfield as a binary string
@@ -85,15 +179,13 @@ public class BitfieldManager {
         System.out.println("Bitfield: " + sb.toString());
     }
 
-    public synchronized void markPieceAsReceived(int pieceIndex) {
+    public void markPieceAsReceived(int pieceIndex) {
         if (pieceIndex < 0 || pieceIndex >= totalPieces) {
             throw new IllegalArgumentException("Invalid piece index: " + pieceIndex);
         }
 
-        int byteIndex = pieceIndex / 8;
-        int bitPosition = pieceIndex % 8;
-
-        bitfield[byteIndex] |= (1 << (7 - bitPosition)); // Set the bit at the corresponding position
-        System.out.println("Piece " + pieceIndex + " marked as received in the bitfield.");
+        if (setPiece(pieceIndex)) { // Set the bit at the corresponding position
+            System.out.println("Piece " + pieceIndex + " marked as received in the bitfield.");
+        }
     }
 }
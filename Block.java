@@ -0,0 +1,43 @@
+// One wire transfer unit: `length` bytes starting at offset `begin` inside piece `pieceIndex`
+public final class Block {
+    private final int pieceIndex;
+    private final int begin;
+    private final int length;
+
+    public Block(int pieceIndex, int begin, int length) {
+        this.pieceIndex = pieceIndex;
+        this.begin = begin;
+        this.length = length;
+    }
+
+    public int getPieceIndex() {
+        return pieceIndex;
+    }
+
+    public int getBegin() {
+        return begin;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Block)) {
+            return false;
+        }
+        Block block = (Block) other;
+        return pieceIndex == block.pieceIndex && begin == block.begin && length == block.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * pieceIndex + begin) + length;
+    }
+
+    @Override
+    public String toString() {
+        return pieceIndex + ":" + begin + "+" + length;
+    }
+}
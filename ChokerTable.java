@@ -0,0 +1,318 @@
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Per-neighbor choker state in parallel primitive arrays, one slot per connected peer, so a choke round over
+// thousands of peers is a few linear passes with no boxing or allocation. Peer IDs map to slots through an
+// open-addressing int table; freed slots are reused. Used only from the choker's scheduler thread.
+public class ChokerTable {
+    public static final long NEVER = Long.MIN_VALUE;
+
+    private static final int NO_SLOT = -1;
+    private static final int EMPTY_KEY = Integer.MIN_VALUE;
+
+    private int size = 0;      // Slots in use, counting freed ones
+    private int[] peerIds;
+    private RateMeter[] downloadMeters;
+    private RateMeter[] uploadMeters;
+    private boolean[] interested;
+    private boolean[] preferred;
+    private int[] uploadWeights;  // What the upload scheduler was last told: 0 = choked, else preferred/optimistic weight
+    private long[] unchokedAt;    // When the current preferred slot was given, or NEVER
+    private long[] chokedAt;      // When the last preferred slot was taken away, or NEVER
+
+    // Per-round scratch, reused
+    private int[] tiers;
+    private double[] scores;
+    private long[] tieBreaks;
+    private int[] heap;
+    private boolean[] selectedScratch;
+    private int[] freeSlots;
+    private int freeCount = 0;
+
+    // Peer ID -> slot, linear probing
+    private int[] tableKeys;
+    private int[] tableSlots;
+
+    public ChokerTable(int initialCapacity) {
+        allocate(Math.max(16, initialCapacity));
+        this.tableKeys = new int[tableSizeFor(peerIds.length)];
+        this.tableSlots = new int[tableKeys.length];
+        Arrays.fill(tableKeys, EMPTY_KEY);
+    }
+
+    public void addPeer(int peerId, RateMeter downloadMeter, RateMeter uploadMeter) {
+        int slot = slotOf(peerId);
+        if (slot == NO_SLOT) {
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else {
+                if (size == peerIds.length) {
+                    grow();
+                }
+                slot = size++;
+            }
+            tablePut(peerId, slot);
+        }
+        peerIds[slot] = peerId;
+        downloadMeters[slot] = downloadMeter;
+        uploadMeters[slot] = uploadMeter;
+        interested[slot] = false;
+        preferred[slot] = false;
+        uploadWeights[slot] = 0;
+        unchokedAt[slot] = NEVER;
+        chokedAt[slot] = NEVER;
+    }
+
+    // Only if the slot still belongs to this connection (identified by its meter); a replacement may have taken it
+    public void removePeer(int peerId, RateMeter downloadMeter) {
+        int slot = slotOf(peerId);
+        if (slot == NO_SLOT || downloadMeters[slot] != downloadMeter) {
+            return;
+        }
+        tableRemove(peerId);
+        peerIds[slot] = EMPTY_KEY;
+        downloadMeters[slot] = null;
+        uploadMeters[slot] = null;
+        interested[slot] = false;
+        preferred[slot] = false;
+        uploadWeights[slot] = 0;
+        freeSlots[freeCount++] = slot;
+    }
+
+    public void setInterested(int peerId, boolean value) {
+        int slot = slotOf(peerId);
+        if (slot != NO_SLOT) {
+            interested[slot] = value;
+        }
+    }
+
+    // Slots run from 0 to getSlotCount() - 1; skip the ones that are not live
+    public int getSlotCount() {
+        return size;
+    }
+
+    public int getPeerId(int slot) {
+        return peerIds[slot];
+    }
+
+    // The peer's slot, or -1 if it is not in the table
+    public int slotOf(int peerId) {
+        int mask = tableKeys.length - 1;
+        for (int i = mix(peerId) & mask; tableKeys[i] != EMPTY_KEY; i = (i + 1) & mask) {
+            if (tableKeys[i] == peerId) {
+                return tableSlots[i];
+            }
+        }
+        return NO_SLOT;
+    }
+
+    public boolean isLive(int slot) {
+        return peerIds[slot] != EMPTY_KEY;
+    }
+
+    public boolean isInterested(int slot) {
+        return interested[slot];
+    }
+
+    public boolean isPreferred(int slot) {
+        return preferred[slot];
+    }
+
+    public int getUploadWeight(int slot) {
+        return uploadWeights[slot];
+    }
+
+    public void setUploadWeight(int slot, int weight) {
+        uploadWeights[slot] = weight;
+    }
+
+    public double getDownloadRate(int slot, long windowMillis) {
+        return downloadMeters[slot].getRate(windowMillis);
+    }
+
+    public double getUploadRate(int slot, long windowMillis) {
+        return uploadMeters[slot].getRate(windowMillis);
+    }
+
+    public long getUnchokedAt(int slot) {
+        return unchokedAt[slot];
+    }
+
+    public long getChokedAt(int slot) {
+        return chokedAt[slot];
+    }
+
+    // Ranking keys for selectTop: lower tier first, then higher score; equal keys are ordered at random
+    public void setRank(int slot, int tier, double score) {
+        tiers[slot] = tier;
+        scores[slot] = score;
+        tieBreaks[slot] = ThreadLocalRandom.current().nextLong();
+    }
+
+    // The k best-ranked live interested slots (skipping `excluded`, or -1 for none), best first, written to out.
+    // A bounded min-heap keeps the k best seen so far; a heap sort of those k puts them in order.
+    public int selectTop(int k, int excluded, int[] out) {
+        int heapSize = 0;
+        for (int slot = 0; slot < size; slot++) {
+            if (!isLive(slot) || !interested[slot] || slot == excluded) {
+                continue;
+            }
+            if (heapSize < k) {
+                heap[heapSize] = slot;
+                siftUp(heapSize++);
+            } else if (k > 0 && ranksBefore(slot, heap[0])) {
+                heap[0] = slot;
+                siftDown(0, heapSize);
+            }
+        }
+        for (int end = heapSize - 1; end > 0; end--) {
+            int worst = heap[0];
+            heap[0] = heap[end];
+            heap[end] = worst;
+            siftDown(0, end);
+        }
+        // The worst-first pops leave the array best-first
+        System.arraycopy(heap, 0, out, 0, heapSize);
+        return heapSize;
+    }
+
+    // Replace the preferred set with the first count slots of selected, recording when slots were gained and lost.
+    // Returns whether the set changed.
+    public boolean setPreferred(int[] selected, int count, long now) {
+        for (int i = 0; i < count; i++) {
+            selectedScratch[selected[i]] = true;
+        }
+        boolean changed = false;
+        for (int slot = 0; slot < size; slot++) {
+            boolean chosen = selectedScratch[slot];
+            if (preferred[slot] && !chosen) {
+                unchokedAt[slot] = NEVER;
+                chokedAt[slot] = now;
+                changed = true;
+            } else if (!preferred[slot] && chosen) {
+                unchokedAt[slot] = now;
+                changed = true;
+            }
+            preferred[slot] = chosen;
+            selectedScratch[slot] = false;
+        }
+        return changed;
+    }
+
+    // Min-heap on rank: the root is the worst of the k kept so far
+    private boolean ranksBefore(int a, int b) {
+        if (tiers[a] != tiers[b]) {
+            return tiers[a] < tiers[b];
+        }
+        if (scores[a] != scores[b]) {
+            return scores[a] > scores[b];
+        }
+        return tieBreaks[a] > tieBreaks[b];
+    }
+
+    private void siftUp(int index) {
+        int slot = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!ranksBefore(heap[parent], slot)) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = slot;
+    }
+
+    private void siftDown(int index, int heapSize) {
+        int slot = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && ranksBefore(heap[child], heap[child + 1])) {
+                child++;
+            }
+            if (!ranksBefore(slot, heap[child])) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = slot;
+    }
+
+    private void allocate(int capacity) {
+        peerIds = Arrays.copyOf(peerIds != null ? peerIds : new int[0], capacity);
+        downloadMeters = Arrays.copyOf(downloadMeters != null ? downloadMeters : new RateMeter[0], capacity);
+        uploadMeters = Arrays.copyOf(uploadMeters != null ? uploadMeters : new RateMeter[0], capacity);
+        interested = Arrays.copyOf(interested != null ? interested : new boolean[0], capacity);
+        preferred = Arrays.copyOf(preferred != null ? preferred : new boolean[0], capacity);
+        uploadWeights = Arrays.copyOf(uploadWeights != null ? uploadWeights : new int[0], capacity);
+        unchokedAt = Arrays.copyOf(unchokedAt != null ? unchokedAt : new long[0], capacity);
+        chokedAt = Arrays.copyOf(chokedAt != null ? chokedAt : new long[0], capacity);
+        tiers = new int[capacity];
+        scores = new double[capacity];
+        tieBreaks = new long[capacity];
+        heap = new int[capacity];
+        selectedScratch = new boolean[capacity];
+        freeSlots = Arrays.copyOf(freeSlots != null ? freeSlots : new int[0], capacity);
+    }
+
+    private void grow() {
+        allocate(peerIds.length * 2);
+        int[] oldKeys = tableKeys;
+        int[] oldSlots = tableSlots;
+        tableKeys = new int[tableSizeFor(peerIds.length)];
+        tableSlots = new int[tableKeys.length];
+        Arrays.fill(tableKeys, EMPTY_KEY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY_KEY) {
+                tablePut(oldKeys[i], oldSlots[i]);
+            }
+        }
+    }
+
+    // At most half full, so probes stay short
+    private static int tableSizeFor(int capacity) {
+        return Integer.highestOneBit(capacity * 4 - 1);
+    }
+
+    private static int mix(int key) {
+        int hash = key * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private void tablePut(int key, int slot) {
+        int mask = tableKeys.length - 1;
+        int i = mix(key) & mask;
+        while (tableKeys[i] != EMPTY_KEY && tableKeys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        tableKeys[i] = key;
+        tableSlots[i] = slot;
+    }
+
+    // Backward-shift deletion keeps every probe chain unbroken without tombstones
+    private void tableRemove(int key) {
+        int mask = tableKeys.length - 1;
+        int i = mix(key) & mask;
+        while (tableKeys[i] != key) {
+            if (tableKeys[i] == EMPTY_KEY) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        int hole = i;
+        for (int j = (hole + 1) & mask; tableKeys[j] != EMPTY_KEY; j = (j + 1) & mask) {
+            int home = mix(tableKeys[j]) & mask;
+            // Move j into the hole unless its home lies cyclically in (hole, j]
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                tableKeys[hole] = tableKeys[j];
+                tableSlots[hole] = tableSlots[j];
+                hole = j;
+            }
+        }
+        tableKeys[hole] = EMPTY_KEY;
+    }
+}
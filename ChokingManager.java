@@ -1,23 +1,47 @@
 import java.util.*;
 import java.util.concurrent.*;
 
+// Choke rounds run on one scheduler thread, which owns the ChokerTable (rates, interest, slots, unchoke times, what
+// each peer was last told). Interest and connection changes from the I/O loops are queued to that thread. A round
+// reads the rate meters, picks the top peers with a bounded heap, then queues CHOKE/UNCHOKE for the peers whose state
+// changed; queuing never blocks, so a slow or silent peer cannot hold up a round. Apart from logging a changed set and
+// the messages themselves, a round allocates nothing, whatever the number of peers.
 public class ChokingManager {
+    // Seeding: a peer given a slot keeps it for at least this many unchoking intervals before it can be rotated out
+    private static final int SEED_SLOT_ROUNDS = 3;
+
+    // Seeding ranks: fresh slots, then long-held slots, then waiting peers
+    private static final int TIER_FRESH = 0;
+    private static final int TIER_HOLDER = 1;
+    private static final int TIER_WAITING = 2;
+
     private final int peerID;
     private ConnectionManager connectionManager;
     private final int numberOfPreferredNeighbors;
     private final int unchokingInterval;
     private final int optimisticUnchokingInterval;
 
-    private final Map<Integer, Double> downloadRates = new ConcurrentHashMap<>();
-    private final Set<Integer> interestedPeers = ConcurrentHashMap.newKeySet();
-    private final List<Integer> preferredNeighbors = Collections.synchronizedList(new ArrayList<>());
-    private int optimisticallyUnchokedPeer = -1;
+    private final ScheduledExecutorService scheduler;
+
+    // Published for other threads when the set changes; replaced, never modified
+    private volatile List<Integer> preferredNeighbors = List.of();
+    private volatile int optimisticallyUnchokedPeer = -1;
+
+    // Scheduler thread only
+    private final ChokerTable table = new ChokerTable(64);
+    private final int[] selected;
 
     public ChokingManager(int peerID, int numberOfPreferredNeighbors, int unchokingInterval, int optimisticUnchokingInterval) {
         this.peerID = peerID;
         this.numberOfPreferredNeighbors = numberOfPreferredNeighbors;
         this.unchokingInterval = unchokingInterval;
         this.optimisticUnchokingInterval = optimisticUnchokingInterval;
+        this.selected = new int[numberOfPreferredNeighbors];
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "peer-" + peerID + "-choker");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public void initialize(ConnectionManager connectionManager) {
@@ -25,87 +49,154 @@ public class ChokingManager {
     }
 
     public void initialize() {
-        Timer unchokeTimer = new Timer();
-        Timer optimisticUnchokeTimer = new Timer();
+        scheduler.scheduleAtFixedRate(() -> runRound(this::selectPreferredNeighbors), 0, unchokingInterval, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(() -> runRound(this::selectOptimisticUnchoke), 0, optimisticUnchokingInterval, TimeUnit.SECONDS);
+    }
+
+    // An exception would cancel the periodic task, so a failed round is reported and the next one runs as usual
+    private void runRound(Runnable round) {
+        try {
+            round.run();
+        } catch (RuntimeException e) {
+            System.err.println("Choke round failed for peer " + peerID + ": " + e);
+        }
+    }
 
-        unchokeTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                selectPreferredNeighbors();
+    private void selectPreferredNeighbors() {
+        long windowMillis = unchokingInterval * 1000L;
+        long now = System.nanoTime();
+        int excluded = connectionManager.isSeeding() ? rankForSeeding(windowMillis, now) : rankForLeeching(windowMillis);
+        int count = table.selectTop(numberOfPreferredNeighbors, excluded, selected);
+
+        if (table.setPreferred(selected, count, now)) {
+            List<Integer> neighbors = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                neighbors.add(table.getPeerId(selected[i]));
             }
-        }, 0, unchokingInterval * 1000);
+            preferredNeighbors = Collections.unmodifiableList(neighbors);
+            logPreferredNeighbors();
+        }
+        applyUnchokedSet();
+    }
 
-        optimisticUnchokeTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                selectOptimisticUnchoke();
+    // Tit-for-tat: interested peers ranked by the bytes they sent us over the last unchoking interval, as counted on
+    // the socket. Ties (e.g. all 0.0 before anything was received) are broken at random.
+    private int rankForLeeching(long windowMillis) {
+        for (int slot = 0; slot < table.getSlotCount(); slot++) {
+            if (table.isLive(slot) && table.isInterested(slot)) {
+                table.setRank(slot, 0, table.getDownloadRate(slot, windowMillis)); // A single tier
             }
-        }, 0, optimisticUnchokingInterval * 1000);
+        }
+        return -1;
     }
 
-    private void selectPreferredNeighbors() {
-        synchronized (interestedPeers) {
-            // Remove the current peer from interested peers
-            interestedPeers.remove(peerID);
-
-            if (downloadRates.isEmpty() || downloadRates.values().stream().allMatch(rate -> rate == 0.0)) {
-                // If all download rates are 0.0, select random peers as preferred neighbors
-                List<Integer> randomPeers = new ArrayList<>(interestedPeers);
-                Collections.shuffle(randomPeers); // Shuffle the list for random selection
-
-                preferredNeighbors.clear();
-                for (int i = 0; i < numberOfPreferredNeighbors && i < randomPeers.size(); i++) {
-                    preferredNeighbors.add(randomPeers.get(i));
-                }
+    // A seed downloads nothing, so slots go by how fast each peer takes data from us, rotated for fairness:
+    //  - a peer unchoked less than SEED_SLOT_ROUNDS rounds ago keeps its slot, so it gets a fair chance to ramp up;
+    //  - peers that have held a slot longer keep it in order of upload rate, except that while anyone is waiting
+    //    the slowest of them gives its slot up each round (returned, to be excluded);
+    //  - free slots go to the peers that have waited longest since they were last unchoked (never unchoked first).
+    private int rankForSeeding(long windowMillis, long now) {
+        long minSlotNanos = SEED_SLOT_ROUNDS * windowMillis * 1_000_000L;
+        int fresh = 0;
+        int holders = 0;
+        int waiting = 0;
+        int slowestHolder = -1;
+        double slowestRate = Double.MAX_VALUE;
+        for (int slot = 0; slot < table.getSlotCount(); slot++) {
+            if (!table.isLive(slot) || !table.isInterested(slot)) {
+                continue;
+            }
+            long slotStart = table.getUnchokedAt(slot);
+            if (slotStart == ChokerTable.NEVER) {
+                long chokedAt = table.getChokedAt(slot);
+                table.setRank(slot, TIER_WAITING, chokedAt == ChokerTable.NEVER ? Double.POSITIVE_INFINITY : -(double) chokedAt);
+                waiting++;
+            } else if (now - slotStart < minSlotNanos) {
+                table.setRank(slot, TIER_FRESH, table.getUploadRate(slot, windowMillis));
+                fresh++;
             } else {
-                List<Map.Entry<Integer, Double>> sortedPeers = new ArrayList<>(downloadRates.entrySet());
-                sortedPeers.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
-
-                preferredNeighbors.clear();
-                for (int i = 0; i < numberOfPreferredNeighbors && i < sortedPeers.size(); i++) {
-                    int peer = sortedPeers.get(i).getKey();
-                    if (peer != peerID) { // Make sure not to add itself
-                        preferredNeighbors.add(peer);
-                    }
+                double rate = table.getUploadRate(slot, windowMillis);
+                table.setRank(slot, TIER_HOLDER, rate);
+                if (rate < slowestRate) {
+                    slowestRate = rate;
+                    slowestHolder = slot;
                 }
+                holders++;
             }
-
-            logPreferredNeighbors();
-            connectionManager.sendChokeUnchokeMessages();
         }
+        return waiting > 0 && holders > 0 && fresh + holders >= numberOfPreferredNeighbors ? slowestHolder : -1;
     }
 
-
-
-
+    // A uniformly random interested peer outside the preferred set (reservoir sampling over the table)
     private void selectOptimisticUnchoke() {
-        synchronized (interestedPeers) {
-            List<Integer> chokedInterestedPeers = new ArrayList<>(interestedPeers);
-            chokedInterestedPeers.removeAll(preferredNeighbors);
-            if (!chokedInterestedPeers.isEmpty()) {
-                optimisticallyUnchokedPeer = chokedInterestedPeers.get(new Random().nextInt(chokedInterestedPeers.size()));
-                logOptimisticUnchoke();
-                connectionManager.sendUnchokeMessage(optimisticallyUnchokedPeer);
+        int chosen = -1;
+        int candidates = 0;
+        for (int slot = 0; slot < table.getSlotCount(); slot++) {
+            if (table.isLive(slot) && table.isInterested(slot) && !table.isPreferred(slot)
+                    && ThreadLocalRandom.current().nextInt(++candidates) == 0) {
+                chosen = slot;
+            }
+        }
+        if (chosen != -1) {
+            optimisticallyUnchokedPeer = table.getPeerId(chosen);
+            logOptimisticUnchoke();
+            applyUnchokedSet();
+        }
+    }
+
+    // Send CHOKE/UNCHOKE only to the peers whose state changes, and give the upload scheduler each unchoked peer's
+    // weight (preferred or optimistic). A peer starts out choked, so one we never unchoked gets nothing; an UNCHOKE
+    // that could not be queued (the peer is gone) is not recorded.
+    private void applyUnchokedSet() {
+        int optimisticSlot = optimisticallyUnchokedPeer != -1 ? table.slotOf(optimisticallyUnchokedPeer) : -1;
+        for (int slot = 0; slot < table.getSlotCount(); slot++) {
+            if (!table.isLive(slot)) {
+                continue;
+            }
+            int weight = table.isPreferred(slot) ? UploadScheduler.PREFERRED_WEIGHT
+                    : slot == optimisticSlot ? UploadScheduler.OPTIMISTIC_WEIGHT : 0;
+            int current = table.getUploadWeight(slot);
+            if (weight == current) {
+                continue;
+            }
+            int remotePeerID = table.getPeerId(slot);
+            if (weight == 0) {
+                connectionManager.sendChokeMessage(remotePeerID); // Also drops its queued requests
+            } else {
+                // Weight first, so a REQUEST answering the UNCHOKE is never refused
+                connectionManager.setUploadWeight(remotePeerID, weight);
+                if (current == 0 && !connectionManager.sendUnchokeMessage(remotePeerID)) {
+                    continue;
+                }
             }
+            table.setUploadWeight(slot, weight);
         }
     }
 
+    // Called on the I/O loop once the handshake identifies the peer; the choker reads rates from its meters
+    public void addPeer(int remotePeerID, PeerConnection connection) {
+        scheduler.execute(() -> table.addPeer(remotePeerID, connection.getDownloadMeter(), connection.getUploadMeter()));
+    }
 
+    // The connection is gone: a reconnecting peer starts over, choked
+    public void removePeer(int remotePeerID, PeerConnection connection) {
+        scheduler.execute(() -> table.removePeer(remotePeerID, connection.getDownloadMeter()));
+    }
 
-    public boolean isInterestedInPeer(int peerID) {
-        return interestedPeers.contains(peerID);
+    public void shutdown() {
+        scheduler.shutdownNow();
     }
 
-    public void updateDownloadRate(int peerID, double rate) {
-        downloadRates.put(peerID, rate);
+    public int getUnchokingInterval() {
+        return unchokingInterval;
     }
 
     public void markInterested(int peerID) {
-        interestedPeers.add(peerID);
+        scheduler.execute(() -> table.setInterested(peerID, true));
     }
 
     public void markNotInterested(int peerID) {
-        interestedPeers.remove(peerID);
+        scheduler.execute(() -> table.setInterested(peerID, false));
     }
 
     public int getoptimisticallyUnchokedPeer(){return optimisticallyUnchokedPeer;}
@@ -7,8 +7,21 @@ public class ConfigManager {
     private int unchokingInterval;
     private int optimisticUnchokingInterval;
     private String fileName;
-    private int fileSize;
+    private long fileSize; // Bytes; content may be far larger than 2 GB
     private int pieceSize;
+    private int blockSize = 16 * 1024; // Wire transfer unit, independent of PieceSize
+    private long pieceCacheSize = 64L * 1024 * 1024; // Bytes of hot pieces kept in memory for uploads
+    private long writeQueueSize = 16L * 1024 * 1024; // Bytes of received blocks waiting for the disk before reads pause
+    private int fsyncEveryPieces = WriteBackQueue.FSYNC_ON_COMPLETE;
+    // Bytes per second, 0 = unlimited; the per-peer limits apply within the global ones
+    private long maxUploadRate = 0;
+    private long maxDownloadRate = 0;
+    private long maxPeerUploadRate = 0;
+    private long maxPeerDownloadRate = 0;
+    private int maxUploadBlocksInFlight = 0; // 0 = derived from MaxUploadRate
+    private int maxPeerUploadBlocksInFlight = 4;
+    private int logQueueSize = Logger.DEFAULT_QUEUE_SIZE; // Log lines waiting for the writer thread
+    private boolean logDropWhenFull = false;
     private Map<Integer, PeerInfo> peerInfoMap;
     private int port;
 
@@ -21,6 +34,7 @@ public class ConfigManager {
     public void loadConfig(String configFilePath) {
         try (BufferedReader reader = new BufferedReader(new FileReader(configFilePath))) {
             String line;
+            boolean blockSizeSet = false;
             while ((line = reader.readLine()) != null) {
                 String[] config = line.split("\\s+");
 
@@ -38,15 +52,87 @@ public class ConfigManager {
                         fileName = config[1];
                         break;
                     case "FileSize":
-                        fileSize = Integer.parseInt(config[1]);
+                        fileSize = Long.parseLong(config[1]);
                         break;
                     case "PieceSize":
                         pieceSize = Integer.parseInt(config[1]);
+                        if (pieceSize <= 0) {
+                            throw new IllegalArgumentException("PieceSize must be positive");
+                        }
+                        break;
+                    case "BlockSize":
+                        blockSize = Integer.parseInt(config[1]);
+                        if (blockSize <= 0) {
+                            throw new IllegalArgumentException("BlockSize must be positive");
+                        }
+                        blockSizeSet = true;
+                        break;
+                    case "PieceCacheSize":
+                        pieceCacheSize = Long.parseLong(config[1]);
+                        break;
+                    case "WriteQueueSize":
+                        writeQueueSize = Long.parseLong(config[1]);
+                        break;
+                    case "FsyncPolicy": // none, complete, or a number N to force every N pieces
+                        if (config[1].equals("none")) {
+                            fsyncEveryPieces = WriteBackQueue.FSYNC_NONE;
+                        } else if (config[1].equals("complete")) {
+                            fsyncEveryPieces = WriteBackQueue.FSYNC_ON_COMPLETE;
+                        } else {
+                            fsyncEveryPieces = Integer.parseInt(config[1]);
+                            if (fsyncEveryPieces <= 0) {
+                                throw new IllegalArgumentException("FsyncPolicy must be none, complete or a positive piece count");
+                            }
+                        }
+                        break;
+                    case "MaxUploadRate":
+                        maxUploadRate = Long.parseLong(config[1]);
+                        break;
+                    case "MaxDownloadRate":
+                        maxDownloadRate = Long.parseLong(config[1]);
+                        break;
+                    case "MaxPeerUploadRate":
+                        maxPeerUploadRate = Long.parseLong(config[1]);
+                        break;
+                    case "MaxPeerDownloadRate":
+                        maxPeerDownloadRate = Long.parseLong(config[1]);
+                        break;
+                    case "MaxUploadBlocksInFlight":
+                        maxUploadBlocksInFlight = Integer.parseInt(config[1]);
+                        break;
+                    case "MaxPeerUploadBlocksInFlight":
+                        maxPeerUploadBlocksInFlight = Integer.parseInt(config[1]);
+                        if (maxPeerUploadBlocksInFlight < 1) {
+                            throw new IllegalArgumentException("MaxPeerUploadBlocksInFlight must be at least 1");
+                        }
+                        break;
+                    case "LogQueueSize":
+                        logQueueSize = Integer.parseInt(config[1]);
+                        if (logQueueSize < 2) {
+                            throw new IllegalArgumentException("LogQueueSize must be at least 2");
+                        }
+                        break;
+                    case "LogOverflowPolicy": // block (wait for the writer) or drop
+                        if (!config[1].equals("block") && !config[1].equals("drop")) {
+                            throw new IllegalArgumentException("LogOverflowPolicy must be block or drop");
+                        }
+                        logDropWhenFull = config[1].equals("drop");
                         break;
                     default:
                         throw new IllegalArgumentException("Unknown config parameter: " + config[0]);
                 }
             }
+            if (pieceSize <= 0) {
+                throw new IllegalArgumentException("PieceSize is missing");
+            }
+            // Only the default block size is capped at PieceSize; an explicit one must fit in a piece
+            if (blockSizeSet && blockSize > pieceSize) {
+                throw new IllegalArgumentException("BlockSize " + blockSize + " is larger than PieceSize " + pieceSize);
+            }
+            // Piece indexes are ints on the wire (HAVE, REQUEST, PIECE)
+            if ((fileSize + pieceSize - 1) / pieceSize > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("FileSize " + fileSize + " needs more than " + Integer.MAX_VALUE + " pieces, increase PieceSize");
+            }
         } catch (IOException e) {
             System.err.println("Error reading config file: " + e.getMessage());
         }
@@ -92,7 +178,7 @@ public class ConfigManager {
         return fileName;
     }
 
-    public int getFileSize() {
+    public long getFileSize() {
         return fileSize;
     }
 
@@ -100,6 +186,64 @@ public class ConfigManager {
         return pieceSize;
     }
 
+    // A block never spans pieces, so it is capped at the piece size
+    public int getBlockSize() {
+        return Math.min(blockSize, pieceSize);
+    }
+
+    public long getPieceCacheSize() {
+        return pieceCacheSize;
+    }
+
+    public long getWriteQueueSize() {
+        return writeQueueSize;
+    }
+
+    public int getFsyncEveryPieces() {
+        return fsyncEveryPieces;
+    }
+
+    public long getMaxUploadRate() {
+        return maxUploadRate;
+    }
+
+    public long getMaxDownloadRate() {
+        return maxDownloadRate;
+    }
+
+    public long getMaxPeerUploadRate() {
+        return maxPeerUploadRate;
+    }
+
+    public long getMaxPeerDownloadRate() {
+        return maxPeerDownloadRate;
+    }
+
+    // Blocks handed to all connections at once. Unless set, about half a second of MaxUploadRate (at least one
+    // neighbor's worth), or no total cap when uploads are not limited.
+    public int getMaxUploadBlocksInFlight() {
+        if (maxUploadBlocksInFlight > 0) {
+            return maxUploadBlocksInFlight;
+        }
+        if (maxUploadRate > 0) {
+            long blocks = (maxUploadRate / 2 + getBlockSize() - 1) / getBlockSize();
+            return (int) Math.max(maxPeerUploadBlocksInFlight, Math.min(Integer.MAX_VALUE, blocks));
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    public int getMaxPeerUploadBlocksInFlight() {
+        return maxPeerUploadBlocksInFlight;
+    }
+
+    public int getLogQueueSize() {
+        return logQueueSize;
+    }
+
+    public boolean isLogDropWhenFull() {
+        return logDropWhenFull;
+    }
+
     public int getPort() {
         return port;
     }
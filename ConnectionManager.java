@@ -1,90 +1,178 @@
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.System.out;
 
 public class ConnectionManager {
+    // A handful of selector threads is enough for hundreds of neighbors
+    private static final int IO_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
     private int peerID;
-    private ServerSocket serverSocket;
-    private final Map<Integer, Socket> connectedPeers;
+    private ServerSocketChannel serverChannel;
+    private final Map<Integer, PeerConnection> connectedPeers;
     private final Map<Integer, Boolean> peerChokingStatus;
-    private boolean hasFile;
+    private final AtomicBoolean hasFile; // Set once, by whichever thread finalizes the download
     private List<PeerInfo> peerInfoList;
-    private final Map<Integer, byte[]> peerBitfields;
-    private final Map<Socket, Integer> socketToPeerID;
+    private final InterestTracker interestTracker;
     private final BitfieldManager bitfieldManager;
     private ChokingManager chokingManager;
     private PieceManager pieceManager;
+    private DownloadScheduler downloadScheduler;
+    private PieceVerifier pieceVerifier;
+    private Readahead readahead;
+    private UploadScheduler uploadScheduler;
+    private final Map<Integer, Integer> corruptPieceCounts = new ConcurrentHashMap<>();
     private final FileManager fileManager;
-    byte[] handshakeMessage = new byte[32];
     byte[] protocolHeader = "P2PFILESHARINGPROJ".getBytes(); // 18-byte protocol identifier
     byte[] zeroBits = new byte[10];  // 10-byte zero bits
     private Logger logger;
 
-    private DataInputStream input;
-    private DataOutputStream output;
+    private final Queue<Integer> pendingHaves = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean haveFlushRunning = new AtomicBoolean(false);
+
+    private final IoLoop[] ioLoops = new IoLoop[IO_THREADS];
+
+    // Rate limits, all off by default; the global buckets are null when unlimited
+    private TokenBucket globalUploadLimiter;
+    private TokenBucket globalDownloadLimiter;
+    private long maxPeerUploadRate = 0;
+    private long maxPeerDownloadRate = 0;
+    private final AtomicInteger nextLoop = new AtomicInteger();
     private static final int CHOKE = 0;
     private static final int UNCHOKE = 1;
+    private static final int INTERESTED = 2;
+    private static final int NOT_INTERESTED = 3;
+    private static final int HAVE = 4;
     private static final int BITFIELD = 5;
+    private static final int REQUEST = 6;
+    private static final int PIECE = 7;
+    private static final int CANCEL = 8;
+    private static final int MAX_CORRUPT_PIECES = 3; // Disconnect a peer after this many pieces fail their hash
 
     // Constructor
-    public ConnectionManager(int peerID, boolean hasFile,BitfieldManager bitfieldManager,FileManager fileManager ) {
+    public ConnectionManager(int peerID, boolean hasFile,BitfieldManager bitfieldManager,FileManager fileManager, Logger logger) {
         this.peerID = peerID;
-        this.hasFile = hasFile;
+        this.hasFile = new AtomicBoolean(hasFile);
         this.connectedPeers = new ConcurrentHashMap<>();
-        this.peerBitfields = new ConcurrentHashMap<>();
+        this.interestTracker = new InterestTracker(bitfieldManager);
         this.peerInfoList = new ArrayList<>();
         this.peerChokingStatus= new ConcurrentHashMap<>();
         this.bitfieldManager = bitfieldManager;
         this.fileManager = fileManager;
-        this.socketToPeerID = new ConcurrentHashMap<>();
-        this.logger = new Logger(peerID);
+        this.logger = logger;
     }
 
-    // Defer initialization of ChokingManager and PieceManager
-    public void initialize(ChokingManager chokingManager, PieceManager pieceManager) {
+    // Defer initialization of ChokingManager, PieceManager and PieceVerifier
+    public void initialize(ChokingManager chokingManager, PieceManager pieceManager, PieceVerifier pieceVerifier) {
         this.chokingManager = chokingManager;
         this.pieceManager = pieceManager;
+        this.pieceVerifier = pieceVerifier;
+        this.downloadScheduler = new DownloadScheduler(peerID, pieceManager, interestTracker, bitfieldManager, this, pieceVerifier);
+        this.readahead = new Readahead(peerID, fileManager.getPieceCache(), bitfieldManager, interestTracker, pieceManager);
+    }
+
+    // Upload scheduler budget: blocks handed to all connections at once, and to any one of them. Called before any
+    // connection exists.
+    public void configureUploads(int maxBlocksInFlight, int maxPeerBlocksInFlight) {
+        this.uploadScheduler = new UploadScheduler(this::sendBlock, maxBlocksInFlight, maxPeerBlocksInFlight);
     }
 
 
 
 
-    public synchronized void addPeerConnection(int peerID, Socket socket) {
-        connectedPeers.put(peerID, socket);
+    public synchronized void addPeerConnection(int peerID, PeerConnection connection) {
+        connectedPeers.put(peerID, connection);
+        notifyAll(); // Wake up anyone waiting in allPeersConnected()
     }
 
-    public synchronized Socket getPeerConnection(int peerID) {
+    // Called on every send from the I/O loops and the choker, so it must not share the monitor with anything slow
+    public PeerConnection getPeerConnection(int peerID) {
         return connectedPeers.get(peerID);
     }
 
+    // Bytes per second, 0 = unlimited. Called before any connection exists; each connection gets its own
+    // per-peer buckets drawing from the shared global ones.
+    public void configureRateLimits(long maxUploadRate, long maxDownloadRate, long maxPeerUploadRate, long maxPeerDownloadRate) {
+        this.globalUploadLimiter = maxUploadRate > 0 ? new TokenBucket(maxUploadRate, null) : null;
+        this.globalDownloadLimiter = maxDownloadRate > 0 ? new TokenBucket(maxDownloadRate, null) : null;
+        this.maxPeerUploadRate = maxPeerUploadRate;
+        this.maxPeerDownloadRate = maxPeerDownloadRate;
+        if (maxUploadRate > 0 || maxDownloadRate > 0 || maxPeerUploadRate > 0 || maxPeerDownloadRate > 0) {
+            System.out.printf("Peer %d rate limits (bytes/s, 0 = unlimited): upload %d, download %d, per peer upload %d, download %d%n",
+                    peerID, maxUploadRate, maxDownloadRate, maxPeerUploadRate, maxPeerDownloadRate);
+        }
+    }
+
+    TokenBucket newUploadLimiter() {
+        return new TokenBucket(maxPeerUploadRate, globalUploadLimiter);
+    }
+
+    TokenBucket newDownloadLimiter() {
+        return new TokenBucket(maxPeerDownloadRate, globalDownloadLimiter);
+    }
 
-    // Start the server and handle incoming connections
+    // Every piece is here: the choker switches from download-rate to upload-rate ranking
+    public boolean isSeeding() {
+        return bitfieldManager.hasCompleteFile();
+    }
+
+    // Meters keep enough history for the choker's ranking window (one unchoking interval)
+    long getRateWindowMillis() {
+        return chokingManager.getUnchokingInterval() * 1000L;
+    }
+
+    // Length prefix (type byte included) of the largest valid message: a BITFIELD or a PIECE carrying a full block
+    int getMaxFrameLength() {
+        return Math.max(bitfieldManager.getBitfieldLength(), pieceManager.getBlockSize() + 8) + 1;
+    }
+
+    // Start the I/O loops and the server channel that accepts incoming connections
     public void startServer(int port) {
         try {
-            serverSocket = new ServerSocket(port);
+            for (int i = 0; i < ioLoops.length; i++) {
+                ioLoops[i] = new IoLoop(this, "peer-" + peerID + "-io-" + i);
+                ioLoops[i].start();
+            }
+
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(port));
+            ioLoops[0].registerServer(serverChannel);
             System.out.println("Peer " + peerID + " started server on port " + port);
             logger.log(String.format("Peer %d started server on port %d", peerID, port)); // Log server start
-            // Continuously listen for incoming connections
-            new Thread(() -> {
-                while (true) {
-                    try {
-                        Socket clientSocket = serverSocket.accept();
-                        System.out.println("Peer " + peerID + " accepted a connection from " + clientSocket.getRemoteSocketAddress());
-                        handleIncomingConnection(clientSocket);
-                    } catch (IOException e) {
-                        System.err.println("Error accepting connection: " + e.getMessage());
-                    }
-                }
-            }).start();
         } catch (IOException e) {
             System.err.println("Error starting server: " + e.getMessage());
         }
     }
 
+    // Called on the accepting loop; the new channel is handed to the next loop round-robin
+    void acceptConnection(ServerSocketChannel server) {
+        try {
+            SocketChannel clientChannel;
+            while ((clientChannel = server.accept()) != null) {
+                System.out.println("Peer " + peerID + " accepted a connection from " + clientChannel.getRemoteAddress());
+                clientChannel.configureBlocking(false);
+                clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                IoLoop loop = nextIoLoop();
+                loop.register(new PeerConnection(clientChannel, loop, this, false, -1), true);
+            }
+        } catch (IOException e) {
+            System.err.println("Error accepting connection: " + e.getMessage());
+        }
+    }
+
+    private IoLoop nextIoLoop() {
+        return ioLoops[Math.floorMod(nextLoop.getAndIncrement(), ioLoops.length)];
+    }
+
 
     // Connect to peers that appear before this peer in the peer map (by index)
     public void connectToPeers(Map<Integer, PeerInfo> peers) {
@@ -107,12 +195,15 @@ public class ConnectionManager {
         for (int i = 0; i < currentPeerIndex; i++) {
             PeerInfo peer = peerInfoList.get(i);
             try {
-                Socket socket = new Socket(peer.getHostName(), peer.getPort());
-                addPeerConnection(peer.getPeerId(), socket);
-                logger.logConnection(peer.getPeerId(), true);
-                System.out.println("Peer " + this.peerID + " connected to peer " + peer.getPeerId());
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                boolean connected = channel.connect(new InetSocketAddress(peer.getHostName(), peer.getPort()));
 
-                handleOutgoingConnection(socket, peer.getPeerId());
+                IoLoop loop = nextIoLoop();
+                loop.register(new PeerConnection(channel, loop, this, true, peer.getPeerId()), connected);
+                logger.logConnection(peer.getPeerId(), true);
+                System.out.println("Peer " + this.peerID + " connecting to peer " + peer.getPeerId());
             } catch (IOException e) {
                 System.err.println("Error connecting to peer " + peer.getPeerId() + ": " + e.getMessage());
             }
@@ -120,275 +211,348 @@ public class ConnectionManager {
     }
 
     public boolean allPeersConnected() {
-        int expectedConnections = 0;
-
         for (PeerInfo peerInfo : peerInfoList) {
-            if (peerInfo.getPeerId() < peerID) {
-                expectedConnections++;
+            if (peerInfo.getPeerId() < peerID && !connectedPeers.containsKey(peerInfo.getPeerId())) {
+                return false;
             }
         }
-
-        // Check if all expected peers are connected
-        return connectedPeers.size() == expectedConnections;
+        return true;
     }
 
+    // Both sides send their handshake as soon as the TCP connection is up; the bitfield follows in onHandshake
+    void onConnected(PeerConnection connection) {
+        connection.enqueue(ByteBuffer.wrap(createHandshakeMessage()));
+        if (connection.isOutgoing()) {
+            System.out.println("Sent handshake to peer: " + connection.getRemotePeerID());
+        }
+    }
 
+    void onHandshake(PeerConnection connection, byte[] handshake) {
+        String header = new String(handshake, 0, protocolHeader.length);
+        if (!header.equals(new String(protocolHeader))) {
+            System.err.println("Invalid handshake header received: " + header);
+            connection.close();
+            return;
+        }
 
-    private void handleIncomingConnection(Socket clientSocket) {
-        try {
-            DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
-
-            // Set the streams to class-level variables if needed
-            this.input = in;
-            this.output = out;
-
-            // Proceed with the handshake and bitfield
-            byte[] handshake = new byte[32];
-            in.readFully(handshake);
-            int remotePeerID = ByteBuffer.wrap(handshake, 28, 4).getInt();
+        int remotePeerID = ByteBuffer.wrap(handshake, 28, 4).getInt();
+        if (connection.isOutgoing()) {
+            if (remotePeerID != connection.getRemotePeerID()) {
+                System.err.println("Handshake peer ID " + remotePeerID + " does not match expected peer " + connection.getRemotePeerID());
+                connection.close();
+                return;
+            }
+            System.out.println("Handshake response received from peer: " + remotePeerID);
+        } else {
+            connection.setRemotePeerID(remotePeerID);
             System.out.println("Received handshake from peer: " + remotePeerID);
-            socketToPeerID.put(clientSocket, remotePeerID);
-            addPeerConnection(remotePeerID, clientSocket);
             logger.logConnection(remotePeerID, false);  // Log accepted connection
-
-            // Send handshake response
-            out.write(createHandshakeMessage());
-            out.flush();
-
-            // Exchange bitfields
-            sendBitfield(out);
-            receiveBitfield(in, remotePeerID);
-        } catch (IOException e) {
-            System.err.println("Error handling incoming connection: " + e.getMessage());
         }
+        downloadScheduler.addPeer(remotePeerID);
+        uploadScheduler.addPeer(remotePeerID);
+        chokingManager.addPeer(remotePeerID, connection);
+        // Registered first, so a piece completed after the bitfield snapshot reaches this peer as a HAVE
+        addPeerConnection(remotePeerID, connection);
+        sendBitfield(connection);
     }
 
-    private void handleOutgoingConnection(Socket socket, int peerID) {
-        try {
-            DataInputStream in = new DataInputStream(socket.getInputStream());
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-
-            this.input = in;
-            this.output = out;
-
-            out.write(createHandshakeMessage());
-            out.flush();
-            System.out.println("Sent handshake to peer: " + peerID);
-            logger.logConnection(peerID, true);  // Log handshake initiated
-
-            // Receive handshake response
-            byte[] handshake = new byte[32];
-            in.readFully(handshake);
-            System.out.println("Handshake response received from peer: " + peerID);
-
-            // Exchange bitfields
-            sendBitfield(out);
-            receiveBitfield(in, peerID);
-        } catch (IOException e) {
-            System.err.println("Error handling outgoing connection to peer " + peerID + ": " + e.getMessage());
+    void onDisconnected(PeerConnection connection) {
+        int remotePeerID = connection.getRemotePeerID();
+        if (remotePeerID != -1) {
+            connectedPeers.remove(remotePeerID, connection);
+            pieceManager.onPeerDisconnected(interestTracker.removePeer(remotePeerID));
+            downloadScheduler.removePeer(remotePeerID);
+            readahead.removePeer(remotePeerID);
+            uploadScheduler.removePeer(remotePeerID);
+            chokingManager.removePeer(remotePeerID, connection);
+            logger.log(String.format("Peer %d lost connection to peer %d", peerID, remotePeerID));
         }
     }
 
 
-    private void sendBitfield(DataOutputStream out) throws IOException {
-        byte[] bitfield = bitfieldManager.getBitfield();
-        ByteBuffer messageBuffer = ByteBuffer.allocate(4 + 1 + bitfield.length);
-        messageBuffer.putInt(1 + bitfield.length);
-        messageBuffer.put((byte) BITFIELD);
-        messageBuffer.put(bitfield);
-        out.write(messageBuffer.array());
-        out.flush();
+    // The snapshot and its enqueue hold the connection's monitor, like the HAVE flush does: a HAVE queued ahead
+    // of the bitfield was flushed before the snapshot, so the bitfield already has that piece
+    private void sendBitfield(PeerConnection connection) {
+        byte[] bitfield;
+        synchronized (connection) {
+            bitfield = bitfieldManager.getBitfield();
+            sendMessage(connection, BITFIELD, bitfield);
+        }
 
         logger.log(String.format("Peer %d sent bitfield of length %d to connected peer.", peerID, bitfield.length));
-        logger.log(String.format("Bitfield sent: %s", Arrays.toString(bitfield)));
 
         System.out.println("Sent bitfield to peer");
     }
 
-    private void receiveBitfield(DataInputStream in, int peerID) throws IOException {
-        int length = in.readInt();
-        byte type = in.readByte();
-        if (type == BITFIELD) {
-            byte[] bitfield = new byte[length - 1];
-            in.readFully(bitfield);
-            peerBitfields.put(peerID, bitfield);
-            System.out.println("Received bitfield from peer " + peerID);
-            System.out.println("Bitfield received from peer is : " + Arrays.toString(bitfield));
+    private void receiveBitfield(int peerID, ByteBuffer payload) {
+        byte[] bitfield = new byte[payload.remaining()];
+        payload.get(bitfield);
+        if (bitfield.length != bitfieldManager.getBitfieldLength()) {
+            System.err.println("Error: Bitfield from peer " + peerID + " has length " + bitfield.length + ", expected " + bitfieldManager.getBitfieldLength());
+            return;
+        }
+        BitfieldManager peerBitfield = BitfieldManager.fromBytes(bitfieldManager.getTotalPieces(), bitfield);
+        pieceManager.onPeerBitfieldChanged(interestTracker.getPeerBitfield(peerID), peerBitfield);
+        boolean interested = interestTracker.onBitfield(peerID, peerBitfield);
+        System.out.println("Received bitfield from peer " + peerID);
+
+        logger.log(String.format("Peer %d received bitfield of length %d from peer %d", this.peerID, bitfield.length, peerID));
+
+        // The initial interest state is always announced; afterwards only zero crossings are
+        sendInterestMessage(peerID, interested);
+    }
 
-            logger.log(String.format("Peer %d received bitfield of length %d from peer %d", this.peerID, bitfield.length, peerID));
-            logger.log(String.format("Bitfield received from peer %d: %s", peerID, Arrays.toString(bitfield)));
+    public void sendInterestMessage(int receiverPeerID, boolean interested) {
+        sendMessage(receiverPeerID, interested ? INTERESTED : NOT_INTERESTED, new byte[0]);
+        System.out.println("Sent " + (interested ? "INTERESTED" : "NOT INTERESTED") + " message to peer " + receiverPeerID);
 
-            exchangeInterestMessages(peerID);
+        if (interested) {
+            logger.logInterested(receiverPeerID);
+        } else {
+            logger.logNotInterested(receiverPeerID);
         }
     }
 
-    public void exchangeInterestMessages(int receiverPeerID) {
-        try {
-            // Get the peer's bitfield from the stored map
-            byte[] peerBitfield = peerBitfields.get(receiverPeerID);
-            if (peerBitfield == null) {
-                System.err.println("Bitfield for peer " + receiverPeerID + " is not available. Skipping...");
-                return;
-            }
 
-            // Determine interest
-            boolean interested = false;
-            for (int i = 0; i < bitfieldManager.getTotalPieces(); i++) {
-                if (!bitfieldManager.hasPiece(i) && peerHasPiece(peerBitfield, i)) {
-                    interested = true;
-                    break;
-                }
-            }
+    // Dispatch one complete frame; runs on the I/O loop that owns the connection
+    public void processIncomingMessage(PeerConnection connection, byte type, ByteBuffer payload) {
+        int receiverPeerID = connection.getRemotePeerID();
+        if (!hasValidLength(type, payload.remaining())) {
+            System.err.println("Malformed message type " + type + " with " + payload.remaining() + " payload bytes from peer " + receiverPeerID + ", disconnecting");
+            connection.close();
+            return;
+        }
+        switch (type) {
+            case 0: // Choke message
+                System.out.println("Received CHOKE message from peer "+receiverPeerID );
+                handleChokeUnchokeMessage(receiverPeerID, true); // Update choking status
+                break;
 
-            if (this.output != null) {
-                byte messageType = (byte) (interested ? 2 : 3); // 2 for INTERESTED, 3 for NOT INTERESTED
-                int messageLength = 1; // The message length is just the type for INTERESTED/NOT INTERESTED
+            case 1: // Unchoke message
+                System.out.println("Received UNCHOKE message from peer "+receiverPeerID );
+                handleChokeUnchokeMessage(receiverPeerID, false); // Update choking status
+                break;
 
-                ByteBuffer messageBuffer = ByteBuffer.allocate(4 + messageLength);
-                messageBuffer.putInt(messageLength);
-                messageBuffer.put(messageType);
-                byte[] fullMessage = messageBuffer.array();
+            case 2: // Interested message
+                System.out.println("Received INTERESTED message from peer "+receiverPeerID );
+                chokingManager.markInterested(receiverPeerID); // Mark the peer as interested
+                break;
 
-                this.output.write(fullMessage);
-                this.output.flush();
+            case 3: // Not Interested message
+                System.out.println("Received NOT INTERESTED message from peer " +receiverPeerID);
+                chokingManager.markNotInterested(receiverPeerID); // Mark the peer as not interested
+                break;
 
-                System.out.println("Sent " + (interested ? "INTERESTED" : "NOT INTERESTED") + " message to peer " + receiverPeerID);
-                System.out.println("Bitfield sent along with " + (interested ? "INTERESTED" : "NOT INTERESTED") + " message: " + Arrays.toString(fullMessage));
+            case 4: // Have message, payload is the 4-byte piece index
+                int haveIndex = payload.getInt();
+                logger.logHave(receiverPeerID, haveIndex);
+                handlePeerHave(receiverPeerID, haveIndex);
+                break;
 
-                if (interested) {
-                    logger.logInterested(receiverPeerID);
-                } else {
-                    logger.logNotInterested(receiverPeerID);
-                }
+            case 5: // Bitfield message
+                System.out.println("Received BITFIELD message from peer "+receiverPeerID );
+                receiveBitfield(receiverPeerID, payload);
+                break;
 
 
-                processIncomingMessage(receiverPeerID);
+            case 6: // Request message: piece index, offset in the piece, block length
+                Block requested = new Block(payload.getInt(), payload.getInt(), payload.getInt());
+                handleRequest(receiverPeerID, requested);
+                break;
 
+            case 7: // Piece message: piece index, offset in the piece, then the block bytes
+                int pieceIndex = payload.getInt();
+                int begin = payload.getInt();
+                handlePieceMessage(receiverPeerID, new Block(pieceIndex, begin, payload.remaining()), payload);
+                break;
 
-            } else {
-                System.err.println("Output stream is not initialized. Cannot send interest message.");
-            }
-        } catch (IOException e) {
-            System.err.println("Error sending interest message to peer " + receiverPeerID + ": " + e.getMessage());
+            case 8: // Cancel message: same payload as the request it cancels
+                Block cancelled = new Block(payload.getInt(), payload.getInt(), payload.getInt());
+                if (!uploadScheduler.cancel(receiverPeerID, cancelled)) {
+                    connection.cancelBlock(cancelled); // Already handed to the connection, maybe not yet on the wire
+                }
+                break;
+
+            default:
+                System.err.println("Received unknown message type: " + type + " from peer "+receiverPeerID );
+                break;
         }
     }
 
-    public void startListeningForMessages( int receiverPeerID) {
-        while (true) {
-            processIncomingMessage(receiverPeerID);
+    // Fixed-size payloads must match exactly and a PIECE needs its 8-byte header, so a short frame never underflows
+    private static boolean hasValidLength(byte type, int length) {
+        switch (type) {
+            case CHOKE:
+            case UNCHOKE:
+            case INTERESTED:
+            case NOT_INTERESTED:
+                return length == 0;
+            case HAVE:
+                return length == 4;
+            case REQUEST:
+            case CANCEL:
+                return length == 12;
+            case PIECE:
+                return length >= 8;
+            default:
+                return true;
         }
     }
 
+    // Validate a REQUEST and queue it with the upload scheduler, which decides when it is served. Peers can re-serve
+    // anything already in their bitfield, even mid-download. A request from a neighbor we have choked is dropped.
+    private void handleRequest(int receiverPeerID, Block block) {
+        if (!bitfieldManager.hasPiece(block.getPieceIndex())) {
+            System.err.println("Peer " + receiverPeerID + " requested piece " + block.getPieceIndex() + " which we don't have");
+            return;
+        }
+        // Compared without adding begin + length, which can overflow
+        int pieceLength = fileManager.getPieceStore().getPieceLength(block.getPieceIndex());
+        if (block.getBegin() < 0 || block.getLength() <= 0 || block.getLength() > pieceManager.getBlockSize()
+                || block.getBegin() > pieceLength - block.getLength()) {
+            System.err.println("Peer " + receiverPeerID + " sent an invalid request for block " + block);
+            return;
+        }
+        uploadScheduler.onRequest(receiverPeerID, block); // Refused requests are counted in its stats
+    }
 
+    // Serve one block picked by the upload scheduler; false if the neighbor is gone.
+    // Blocks come from the shared off-heap cache. A piece that isn't cached yet is read by the readahead threads and
+    // the block is queued once it is in memory, so the I/O loop never waits for the disk. With the cache disabled the
+    // block bytes go from the file to the socket with transferTo. Only the 13-byte header is on the heap.
+    private boolean sendBlock(int receiverPeerID, Block block) {
+        PeerConnection connection = getPeerConnection(receiverPeerID);
+        if (connection == null || connection.isClosed()) {
+            return false;
+        }
+        // Either the epoch is from before a concurrent CHOKE (the block is dropped on enqueue) or the weight check sees it
+        int chokeEpoch = connection.getChokeEpoch();
+        if (!uploadScheduler.isUnchoked(receiverPeerID)) {
+            return false;
+        }
 
+        ByteBuffer header = ByteBuffer.allocate(4 + 1 + 4 + 4);
+        header.putInt(1 + 4 + 4 + block.getLength());
+        header.put((byte) PIECE);
+        header.putInt(block.getPieceIndex());
+        header.putInt(block.getBegin());
+        header.flip();
+
+        readahead.onRequest(receiverPeerID, block.getPieceIndex());
+        PieceCache.CachedPiece cachedPiece = fileManager.getPieceCache().acquireIfCached(block.getPieceIndex());
+        if (cachedPiece != null) {
+            connection.enqueueBlock(block, header, cachedPiece, chokeEpoch);
+        } else if (readahead.isEnabled()) {
+            readahead.load(block.getPieceIndex(), loaded -> {
+                if (loaded != null) {
+                    connection.enqueueBlock(block, header, loaded, chokeEpoch);
+                } else {
+                    connection.enqueueBlock(block, header, fileManager.getBlockRegion(block.getPieceIndex(), block.getBegin(), block.getLength()), chokeEpoch);
+                }
+            });
+        } else {
+            connection.enqueueBlock(block, header, fileManager.getBlockRegion(block.getPieceIndex(), block.getBegin(), block.getLength()), chokeEpoch);
+        }
+        return true;
+    }
 
+    // A neighbor has a new piece: bump its availability and become interested if it is the first piece we need
+    private void handlePeerHave(int senderPeerID, int pieceIndex) {
+        BitfieldManager peerBitfield = interestTracker.getPeerBitfield(senderPeerID);
+        if (peerBitfield == null || peerBitfield.hasPiece(pieceIndex)) {
+            return;
+        }
+        pieceManager.onPeerHave(pieceIndex);
+        if (interestTracker.onHave(senderPeerID, pieceIndex)) {
+            sendInterestMessage(senderPeerID, true);
+            downloadScheduler.fill(senderPeerID); // In case it already unchoked us
+        }
+    }
 
-    public void processIncomingMessage(int receiverPeerID) {
-//        System.out.println("inside ProcessIncomingmessage");
-        try  {
-
-            int length = this.input.readInt();
-
-            byte[] bitfield;
-
-            byte type = this.input.readByte();
-
-            switch (type) {
-                case 0: // Choke message
-                    System.out.println("Received CHOKE message from peer "+receiverPeerID );
-                    handleChokeUnchokeMessage(receiverPeerID, true); // Update choking status
-                    break;
-
-                case 1: // Unchoke message
-                    System.out.println("Received UNCHOKE message from peer "+receiverPeerID );
-                    handleChokeUnchokeMessage(receiverPeerID, false); // Update choking status
-                    break;
-
-                case 2: // Interested message
-                    System.out.println("Received INTERESTED message from peer "+receiverPeerID );
-                    chokingManager.markInterested(receiverPeerID); // Mark the peer as interested
-                    break;
-
-                case 3: // Not Interested message
-                    System.out.println("Received NOT INTERESTED message from peer " +receiverPeerID);
-                    chokingManager.markNotInterested(receiverPeerID); // Mark the peer as not interested
-                    break;
-
-                case 4: // Have message
-                    System.out.println("Received HAVE message from peer " +receiverPeerID);
-                    bitfield = new byte[length - 1];
-                    this.input.readFully(bitfield);
-                    peerBitfields.put(peerID, bitfield);
-                    break;
+    private void handlePieceMessage(int senderPeerID, Block block, ByteBuffer data) {
+        downloadScheduler.onBlockReceived(senderPeerID, block);
+        pieceManager.handleBlock(senderPeerID, block.getPieceIndex(), block.getBegin(), data);
+        downloadScheduler.fill(senderPeerID);
+    }
 
-                case 5: // Bitfield message
-                    bitfield = new byte[length - 1]; // Payload length is (length - 1 byte for type)
-                    this.input.readFully(bitfield); // Read the bitfield
-                    System.out.println("Received BITFIELD message from peer "+receiverPeerID );
-//                    peerBitfields.put(senderPeerID, bitfield);
-//                    exchangeInterestMessages();
-                    break;
+    // Runs on the writer thread once every block of the piece is on disk
+    void onPieceWritten(int pieceIndex, int senderPeerID) {
+        pieceVerifier.verify(pieceIndex, valid -> onPieceVerified(pieceIndex, senderPeerID, valid));
+    }
 
+    // The block could not be written and is wanted again
+    void onBlockWriteFailed(int pieceIndex, int begin, int senderPeerID) {
+        System.err.println("Peer " + peerID + ": writing block " + pieceIndex + ":" + begin + " from peer " + senderPeerID + " failed, requesting it again");
+        downloadScheduler.fillAll();
+    }
 
-                case 6: // Request message
-                    System.out.println("Received REQUEST message from peer "+ receiverPeerID );
-                    byte[] fullFileData = fileManager.getFullFileData(peerID);
-                    sendFullFile(receiverPeerID, fullFileData);
-                    break;
+    // Write-back backpressure: stop reading from every neighbor until the disk catches up
+    void setReadsPaused(boolean paused) {
+        System.out.println("Peer " + peerID + (paused ? " pausing" : " resuming") + " socket reads for the write-back queue");
+        for (PeerConnection connection : connectedPeers.values()) {
+            connection.setReadPaused(paused);
+        }
+    }
 
-                case 7: // Piece message
-                    System.out.println("Received FULL FILE message from peer " + receiverPeerID);
-                    byte[] fileData = new byte[length - 1]; // Remaining payload is the file data
-                    this.input.readFully(fileData);
-                    // Handle the received file data
-                    pieceManager.handleFullFileResponse(peerID, fileData);
-                    finalizeDownload();
-                    break;
+    // Runs on a hashing thread. Only a verified piece goes into our bitfield and is announced with HAVE.
+    private void onPieceVerified(int pieceIndex, int senderPeerID, boolean valid) {
+        if (!valid) {
+            handleCorruptPiece(pieceIndex);
+            return;
+        }
+        pieceManager.completePiece(pieceIndex);
+        fileManager.recordCompletedPiece(pieceIndex);
 
-                default:
-                    System.err.println("Received unknown message type: " + type + " from peer "+receiverPeerID );
-                    break;
-            }
+        // Neighbors that had nothing else for us get NOT_INTERESTED right away
+        for (int uninterestingPeer : interestTracker.onPieceCompleted(pieceIndex)) {
+            sendInterestMessage(uninterestingPeer, false);
+        }
+        logger.logPieceDownload(pieceIndex, senderPeerID, bitfieldManager.getPieceCount());
+        sendHaveMessageToAll(pieceIndex);
 
-//            System.out.println("Out of ProcessIncomingmessage");
-        } catch (IOException e) {
-            System.err.println("Error processing message "+ e.getMessage());
+        if (bitfieldManager.hasCompleteFile()) {
+            finalizeDownload();
+        } else {
+            // Peers held back by the verification backlog, or idle ones that can help in endgame, get requests again
+            downloadScheduler.fillAll();
         }
     }
 
-    public void sendFullFile(int receiverPeerID, byte[] fullFileData) {
-        try {
-            int messageLength = fullFileData.length + 1; // Length of the full file data + 1 byte for message type
-            this.output.writeInt(messageLength);
-            this.output.writeByte(7); // Message type for full file response
-            this.output.write(fullFileData);
-            this.output.flush();
-            logger.log(String.format("Sent complete file to peer %d", peerID));
-            chokingManager.markNotInterested(receiverPeerID);
-            System.out.println("Sent full file to peer " + receiverPeerID);
-
-        } catch (IOException e) {
-            System.err.println("Error sending full file to peer " + receiverPeerID + ": " + e.getMessage());
+    // The piece is downloaded again; everyone who sent part of it loses its rate credit, repeat offenders are dropped
+    private void handleCorruptPiece(int pieceIndex) {
+        Set<Integer> senders = pieceManager.discardPiece(pieceIndex);
+        System.err.println("Peer " + peerID + ": piece " + pieceIndex + " from " + senders + " failed verification, requesting it again");
+        logger.logCorruptPiece(pieceIndex, senders);
+        for (int sender : senders) {
+            PeerConnection connection = getPeerConnection(sender);
+            if (connection != null) {
+                connection.getDownloadMeter().reset();
+            }
+            if (corruptPieceCounts.merge(sender, 1, Integer::sum) >= MAX_CORRUPT_PIECES && connection != null) {
+                System.err.println("Peer " + peerID + ": disconnecting peer " + sender + " after " + MAX_CORRUPT_PIECES + " corrupt pieces");
+                connection.getLoop().execute(connection::close);
+            }
         }
+        downloadScheduler.fillAll();
     }
 
+    // Runs once, without holding any lock: finishing the download may fsync the whole file
     public void finalizeDownload() {
+        if (!hasFile.compareAndSet(false, true)) {
+            return;
+        }
         System.out.println("Peer " + peerID + " finalized");
-
-        // Notify all connected peers that this peer now has the complete file
-        sendHaveMessageToAll(bitfieldManager.getBitfield());
-        this.hasFile = true;
+        fileManager.finishDownload();
+        logger.log(String.format("Peer %d %s", peerID, pieceManager.getDuplicateReport()));
+        logger.log(String.format("Peer %d %s", peerID, pieceVerifier.getStats()));
+        logStats();
         System.out.println("Peer " + peerID + ": Download complete!");
         logger.logComplete();
-
-
     }
 
     // Create the handshake message
     private byte[] createHandshakeMessage() {
-
-
+        byte[] handshakeMessage = new byte[32];
         byte[] peerIDBytes = ByteBuffer.allocate(4).putInt(peerID).array();
 
         System.arraycopy(protocolHeader, 0, handshakeMessage, 0, protocolHeader.length);
@@ -399,96 +563,90 @@ public class ConnectionManager {
     }
 
 
-    // Helper method to check if a peer has a specific piece
-    private boolean peerHasPiece(byte[] bitfield, int pieceIndex) {
-        int byteIndex = pieceIndex / 8;
-        int bitPosition = pieceIndex % 8;
-        return (bitfield[byteIndex] & (1 << (7 - bitPosition))) != 0;
+    // Send a "have" message for a newly completed piece to all connected peers
+    public void sendHaveMessageToAll(int pieceIndex) {
+        pendingHaves.add(pieceIndex);
+        flushHaveMessages();
     }
 
-    // Send a "have" message to all connected peers indicating the peer has downloaded a piece or the file
-    public void sendHaveMessageToAll(byte[] bitfield) {
-        for (Map.Entry<Integer, Socket> entry : connectedPeers.entrySet()) {
-            int peerID = entry.getKey();
-            Socket socket = entry.getValue();
-
+    // Whoever wins the flag drains every HAVE completed so far into one buffer, serialized once and shared by all
+    // peer write queues (each gets its own read-only view with independent position). Pieces completed concurrently
+    // on other I/O threads ride along in the same batch.
+    private void flushHaveMessages() {
+        while (!pendingHaves.isEmpty() && haveFlushRunning.compareAndSet(false, true)) {
             try {
-                // Prepare the message to send the whole bitfield
-                int messageLength = 1 + bitfield.length; // 1 byte for the message type + bitfield size
-                ByteBuffer messageBuffer = ByteBuffer.allocate(4 + messageLength);
-                messageBuffer.putInt(messageLength); // Add message length
-                messageBuffer.put((byte) 4); // Message type for 'Have' (4)
-                messageBuffer.put(bitfield); // Add the entire bitfield
-
-                byte[] fullMessage = messageBuffer.array();
-
-                // Send the message
-                this.output.write(fullMessage);
-                this.output.flush();
+                List<Integer> batch = new ArrayList<>();
+                Integer pieceIndex;
+                while ((pieceIndex = pendingHaves.poll()) != null) {
+                    batch.add(pieceIndex);
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
 
-                System.out.println("Peer " + this.peerID + " sent Have message to peer " + peerID);
-                logger.logHave(peerID);
-                logger.logDownload(peerID);
+                ByteBuffer frames = ByteBuffer.allocate(batch.size() * (4 + 1 + 4));
+                for (int index : batch) {
+                    frames.putInt(1 + 4);
+                    frames.put((byte) HAVE);
+                    frames.putInt(index);
+                }
+                frames.flip();
+                ByteBuffer shared = frames.asReadOnlyBuffer();
 
-            } catch (IOException e) {
-                System.err.println("Error sending bitfield to peer " + peerID + ": " + e.getMessage());
+                for (PeerConnection connection : connectedPeers.values()) {
+                    synchronized (connection) { // Ordered against sendBitfield
+                        connection.enqueue(shared.duplicate());
+                    }
+                }
+            } finally {
+                haveFlushRunning.set(false);
             }
         }
     }
 
 
-    void sendChokeUnchokeMessages() {
-        for (int peerID : getConnectedPeers().keySet()) {
-            if (chokingManager.getPreferredNeighbors().contains(peerID) || peerID == chokingManager.getoptimisticallyUnchokedPeer()) {
-                sendUnchokeMessage(peerID);
-            } else {
-                sendChokeMessage(peerID);
-            }
-            //new Thread(() -> startListeningForMessages(peerID)).start();
-            processIncomingMessage(peerID);
-
+    // Both only queue the message on the peer's connection; false if the peer is not connected.
+    // After a CHOKE the neighbor's queued requests and unsent blocks are dropped.
+    public boolean sendChokeMessage(int peerID) {
+        // Weight first, then the epoch: sendBlock reads them in the opposite order, so no block slips through
+        uploadScheduler.setWeight(peerID, 0);
+        PeerConnection connection = getPeerConnection(peerID);
+        if (connection != null) {
+            connection.onChoked();
         }
-    }
-
-    public void sendChokeMessage(int peerID) {
-        try {
-            Socket socket = getPeerConnection(peerID);
-            if (socket == null || socket.isClosed()) {
-                System.err.println("Cannot send CHOKE message to peer " + peerID + ": Socket is closed or unavailable.");
-                return;
-            }
-            sendMessage(new DataOutputStream(socket.getOutputStream()), CHOKE, new byte[0]);
-
+        if (sendMessage(peerID, CHOKE, new byte[0])) {
             System.out.println("Sent CHOKE message to peer " + peerID);
-        } catch (IOException e) {
-            System.err.println("Error sending CHOKE message to peer " + peerID + ": " + e.getMessage());
+            return true;
         }
+        return false;
     }
 
-    public void sendUnchokeMessage(int peerID) {
-        try {
-            Socket socket = getPeerConnection(peerID);
-            if (socket == null || socket.isClosed()) {
-                System.err.println("Cannot send UNCHOKE message to peer " + peerID + ": Socket is closed or unavailable.");
-                return;
-            }
-
-            sendMessage(new DataOutputStream(socket.getOutputStream()), UNCHOKE, new byte[0]);
-
+    public boolean sendUnchokeMessage(int peerID) {
+        if (sendMessage(peerID, UNCHOKE, new byte[0])) {
             System.out.println("Sent UNCHOKE message to peer " + peerID);
-        } catch (IOException e) {
-            System.err.println("Error sending UNCHOKE message to peer " + peerID + ": " + e.getMessage());
+            return true;
         }
+        return false;
     }
 
-    private void sendMessage(DataOutputStream out, int type, byte[] payload) throws IOException {
-        int length = 1 + payload.length;
-        output. writeInt(length);
-        output. writeByte(type);
-        output. write(payload);
-        output. flush();
-        System.out.println("Sending message: length=" + (1 + payload.length) + ", type=" + type + ", payload size=" + payload.length);
+    // Frame a message and queue it on the peer's own channel
+    private boolean sendMessage(int peerID, int type, byte[] payload) {
+        PeerConnection connection = getPeerConnection(peerID);
+        if (connection == null || connection.isClosed()) {
+            System.err.println("Cannot send message type " + type + " to peer " + peerID + ": Connection is closed or unavailable.");
+            return false;
+        }
+        sendMessage(connection, type, payload);
+        return true;
+    }
 
+    private void sendMessage(PeerConnection connection, int type, byte[] payload) {
+        ByteBuffer message = ByteBuffer.allocate(4 + 1 + payload.length);
+        message.putInt(1 + payload.length);
+        message.put((byte) type);
+        message.put(payload);
+        message.flip();
+        connection.enqueue(message);
     }
 
 
@@ -515,51 +673,70 @@ public class ConnectionManager {
 
     // Event listener for choke/un-choke actions
     private void onChokeStatusChange(int peerID, boolean isChoked) {
-        // If the peer is unchoked, we can now request the whole file from it
-        if (!isChoked && !this.hasFile) {
-            new Thread(() -> {
-                if (!isChokedByPeer(peerID)) {
-                    // Request all pieces (in this case, equivalent to requesting the entire file)
-                    handlePieceRequest(peerID);
-                }
-            }).start();
+        if (isChoked) {
+            downloadScheduler.onChoked(peerID);
+        } else if (!hasFile.get()) {
+            // If the peer is unchoked, it gets its own pieces to download alongside the other unchoked peers
+            downloadScheduler.onUnchoked(peerID);
         }
     }
 
+    // Endgame: the block arrived from another peer. CANCEL has the same payload as the REQUEST.
+    boolean sendCancel(int peerID, Block block) {
+        byte[] cancel = ByteBuffer.allocate(12).putInt(block.getPieceIndex()).putInt(block.getBegin()).putInt(block.getLength()).array();
+        downloadScheduler.onCancelled(peerID, block);
+        return sendMessage(peerID, CANCEL, cancel);
+    }
 
-    public void handlePieceRequest(int peerID) {
-        if (isChokedByPeer(peerID)) {
-            System.out.println("Cannot request file from peer " + peerID + ": Peer has choked us.");
-            return; // Do not send the request if choked
-        }
+    // The REQUEST payload is piece index, offset and length
+    boolean sendRequest(int peerID, Block block) {
+        byte[] request = ByteBuffer.allocate(12).putInt(block.getPieceIndex()).putInt(block.getBegin()).putInt(block.getLength()).array();
+        return sendMessage(peerID, REQUEST, request);
+    }
 
-        try {
-            int totalFileRequestLength = 5; // Adjust this value if necessary
-            this.output.writeInt(totalFileRequestLength); // Message length
-            this.output.writeByte(6); // Piece request message type (assuming `6` means request for all pieces)
-            this.output.flush();
-            logger.log(String.format("Requested full file from peer %d", peerID));
 
+    // The choker's share for an unchoked neighbor (UploadScheduler.PREFERRED_WEIGHT or OPTIMISTIC_WEIGHT), 0 once choked
+    void setUploadWeight(int remotePeerID, int weight) {
+        uploadScheduler.setWeight(remotePeerID, weight);
+    }
+
+    // Blocks handed out by the upload scheduler were written or dropped by the connection
+    void onUploadSlotsFreed(int remotePeerID, int count) {
+        uploadScheduler.onBlocksFinished(remotePeerID, count);
+    }
 
-            System.out.println("Requested the complete file from peer " + peerID);
-        } catch (IOException e) {
-            System.err.println("Error requesting file from peer " + peerID + ": " + e.getMessage());
+    // Upload-side counters, logged on completion and when the peer shuts down
+    public void logStats() {
+        logger.log(String.format("Peer %d %s", peerID, fileManager.getPieceCache().getStats()));
+        logger.log(String.format("Peer %d %s", peerID, readahead.getStats()));
+        logger.log(String.format("Peer %d %s", peerID, fileManager.getWriteBack().getStats()));
+        logger.log(String.format("Peer %d %s", peerID, uploadScheduler.getStats()));
+        for (PeerConnection connection : connectedPeers.values()) {
+            logger.log(String.format("Peer %d traffic with peer %d: %d bytes received, %d bytes sent", peerID,
+                    connection.getRemotePeerID(), connection.getDownloadMeter().getTotalBytes(), connection.getUploadMeter().getTotalBytes()));
         }
     }
 
-
     public void stopServer() {
         try {
-            serverSocket.close();
-            for (Socket socket : connectedPeers.values()) {
-                socket.close();
+            serverChannel.close();
+            downloadScheduler.shutdown();
+            chokingManager.shutdown();
+            pieceVerifier.shutdown();
+            readahead.shutdown();
+            for (PeerConnection connection : connectedPeers.values()) {
+                connection.close();
+            }
+            for (IoLoop loop : ioLoops) {
+                loop.shutdown();
             }
+            fileManager.close();
         } catch (IOException e) {
             System.err.println("Error closing server: " + e.getMessage());
         }
     }
 
-    public Map<Integer, Socket> getConnectedPeers() {
+    public Map<Integer, PeerConnection> getConnectedPeers() {
         return connectedPeers;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,160 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Spreads the download across every peer that has unchoked us. Each peer works on its own pieces (a piece is owned
+// by one peer, so the same block is never requested twice), its request pipeline is kept full, and work is handed
+// to the other peers when a peer chokes us, disconnects or stalls.
+public class DownloadScheduler {
+    private static final long STALL_CHECK_INTERVAL_MS = 1000;
+    private static final long MIN_STALL_TIMEOUT_NANOS = 5_000_000_000L;
+
+    private final int peerID;
+    private final PieceManager pieceManager;
+    private final InterestTracker interestTracker;
+    private final BitfieldManager bitfieldManager;
+    private final ConnectionManager connectionManager;
+    private final PieceVerifier pieceVerifier;
+
+    private final Map<Integer, RequestPipeline> pipelines = new ConcurrentHashMap<>();
+    private final Set<Integer> unchokedBy = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService stallChecker;
+    private volatile boolean waitingForHashes = false;
+
+    public DownloadScheduler(int peerID, PieceManager pieceManager, InterestTracker interestTracker,
+                             BitfieldManager bitfieldManager, ConnectionManager connectionManager, PieceVerifier pieceVerifier) {
+        this.peerID = peerID;
+        this.pieceManager = pieceManager;
+        this.interestTracker = interestTracker;
+        this.bitfieldManager = bitfieldManager;
+        this.connectionManager = connectionManager;
+        this.pieceVerifier = pieceVerifier;
+        this.stallChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "peer-" + peerID + "-stall-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        stallChecker.scheduleWithFixedDelay(this::checkForStalls, STALL_CHECK_INTERVAL_MS, STALL_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void addPeer(int remotePeerID) {
+        pipelines.put(remotePeerID, new RequestPipeline(remotePeerID, pieceManager.getBlockSize()));
+    }
+
+    public void removePeer(int remotePeerID) {
+        unchokedBy.remove(remotePeerID);
+        release(remotePeerID);
+        pipelines.remove(remotePeerID);
+    }
+
+    public void onUnchoked(int remotePeerID) {
+        unchokedBy.add(remotePeerID);
+        fill(remotePeerID);
+    }
+
+    // Anything we asked this peer for will not arrive, hand it to the other unchoked peers
+    public void onChoked(int remotePeerID) {
+        unchokedBy.remove(remotePeerID);
+        release(remotePeerID);
+    }
+
+    public void onBlockReceived(int remotePeerID, Block block) {
+        RequestPipeline pipeline = pipelines.get(remotePeerID);
+        if (pipeline != null) {
+            pipeline.onResponse(block, block.getLength());
+        }
+    }
+
+    // Endgame: another peer delivered the block first and we cancelled it here, so the slot can be reused
+    public void onCancelled(int remotePeerID, Block block) {
+        RequestPipeline pipeline = pipelines.get(remotePeerID);
+        if (pipeline != null && pipeline.cancel(block)) {
+            fill(remotePeerID);
+        }
+    }
+
+    // Keep the peer's pipeline full: request blocks until the adaptive depth is reached. Called from the I/O loops,
+    // the hashing threads, the writer and the stall checker, so filling is serialized per peer on its pipeline; a
+    // request is recorded before it is sent, so a fast PIECE always finds it outstanding.
+    public void fill(int remotePeerID) {
+        RequestPipeline pipeline = pipelines.get(remotePeerID);
+        if (pipeline == null || !unchokedBy.contains(remotePeerID) || bitfieldManager.hasCompleteFile()) {
+            return; // Do not send requests if choked
+        }
+        if (pieceVerifier.isBacklogged()) {
+            return; // Hashing can't keep up; refilled as verified pieces drain the queue
+        }
+        if (!pieceVerifier.hasPieceHashes()) {
+            waitingForHashes = true; // Refilled by the stall checker once the hash file shows up
+            return;
+        }
+
+        boolean sendFailed = false;
+        synchronized (pipeline) {
+            while (pipeline.hasRoom()) {
+                Block block = pieceManager.getNextBlockToRequest(remotePeerID, interestTracker.getPeerBitfield(remotePeerID));
+                if (block == null) {
+                    return; // Nothing (more) this peer can give us right now
+                }
+                pipeline.onRequestSent(block);
+                if (!connectionManager.sendRequest(remotePeerID, block)) {
+                    sendFailed = true;
+                    break;
+                }
+            }
+        }
+        if (sendFailed) {
+            release(remotePeerID); // Outside the pipeline lock, since it refills the other peers
+        }
+    }
+
+    public void fillAll() {
+        for (int remotePeerID : unchokedBy) {
+            fill(remotePeerID);
+        }
+    }
+
+    private void release(int remotePeerID) {
+        RequestPipeline pipeline = pipelines.get(remotePeerID);
+        List<Block> released = pipeline != null ? pipeline.releaseAll() : Collections.emptyList();
+        pieceManager.releaseRequests(remotePeerID);
+        if (!released.isEmpty() && !stallChecker.isShutdown()) {
+            // On the checker thread: release can run inside another peer's fill (a send that fails closes the
+            // connection), and filling from there would take two pipeline locks
+            stallChecker.execute(() -> {
+                for (int otherPeer : unchokedBy) {
+                    if (otherPeer != remotePeerID) {
+                        fill(otherPeer);
+                    }
+                }
+            });
+        }
+    }
+
+    // A peer that keeps us waiting far longer than its usual round trip is snubbed: its requests go to other
+    // peers and it only gets one request at a time until it delivers again
+    private void checkForStalls() {
+        try {
+            if (waitingForHashes && pieceVerifier.hasPieceHashes()) {
+                waitingForHashes = false;
+                fillAll();
+            }
+            long now = System.nanoTime();
+            for (RequestPipeline pipeline : pipelines.values()) {
+                long timeout = Math.max(MIN_STALL_TIMEOUT_NANOS, pipeline.getBaseRttNanos() * 8);
+                if (pipeline.getStalledNanos(now) > timeout) {
+                    int remotePeerID = pipeline.getPeerID();
+                    System.out.println("Peer " + peerID + ": peer " + remotePeerID + " stalled, reassigning its requests");
+                    pipeline.setSnubbed(true);
+                    release(remotePeerID);
+                    fill(remotePeerID);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Error checking for stalled peers: " + e.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        stallChecker.shutdownNow();
+    }
+}
@@ -1,6 +1,26 @@
 import java.io.*;
+import java.util.*;
 
 public class FileManager {
+    private final int peerID;
+    private final String fileName;
+    private final long fileSize;
+    private final int pieceSize;
+    private PieceStore pieceStore;
+    private File pieceHashFile;
+    private volatile PieceHashes pieceHashes;
+    private boolean missingHashesReported = false;
+    private long lastHashLoadNanos = 0; // Guarded by this; a missing hash file is looked for again at most once a second
+    private BitfieldJournal journal;
+    private PieceCache pieceCache;
+    private WriteBackQueue writeBack;
+
+    public FileManager(int peerID, String fileName, long fileSize, int pieceSize) {
+        this.peerID = peerID;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+    }
 
     // Create a folder for the peer to store pieces
     public static void createPeerFolder(int peerID) {
@@ -15,68 +35,155 @@ public class FileManager {
         }
     }
 
-    public static void splitFileIntoPieces(File file, int pieceSize, int peerID) throws IOException {
-        String folderName = "peer_" + peerID;
+    // Open (or preallocate) the single backing file; seeds use their existing file as-is, no splitting needed
+    public void openStore(boolean hasFile) throws IOException {
+        createPeerFolder(peerID);
+        if (hasFile && getFile().length() != fileSize) {
+            throw new IOException("Expected " + getFile().getPath() + " with " + fileSize + " bytes, found " + getFile().length());
+        }
+        this.pieceStore = new PieceStore(getFile(), fileSize, pieceSize);
+        this.pieceCache = new PieceCache(pieceStore, pieceSize, 0);
+        System.out.println("Piece store opened for Peer " + peerID + ": " + getFile().getPath());
+    }
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
-            byte[] buffer = new byte[pieceSize];
-            int partNumber = 0;
+    // Keep up to capacityBytes of hot pieces in memory for uploads (0 disables the cache)
+    public void openPieceCache(long capacityBytes) {
+        this.pieceCache = new PieceCache(pieceStore, pieceSize, capacityBytes);
+    }
 
-            while (true) {
-                int bytesRead = bis.read(buffer);
-                if (bytesRead == -1) break;
+    public PieceCache getPieceCache() {
+        return pieceCache;
+    }
 
-                File piece = new File(folderName + File.separator + "piece_" + partNumber);
-                try (FileOutputStream fos = new FileOutputStream(piece)) {
-                    fos.write(buffer, 0, bytesRead);
-                }
+    // Received blocks are written by a background writer; see WriteBackQueue for the fsync policy values
+    public void openWriteBack(long capacityBytes, int fsyncEveryPieces, java.util.function.Consumer<Boolean> pauseReads) {
+        this.writeBack = new WriteBackQueue(peerID, pieceStore, capacityBytes, fsyncEveryPieces, pauseReads);
+    }
 
-                //System.out.println("Created piece_" + partNumber + " for Peer " + peerID);
-                partNumber++;
+    public WriteBackQueue getWriteBack() {
+        return writeBack;
+    }
+
+    // Seeds hash their file and (re)write the metadata file unless it is newer than the file; downloaders read it
+    // when they first need it, since the seed may still be writing it when they start
+    public void openPieceHashes(File hashFile, boolean hasFile) throws IOException {
+        this.pieceHashFile = hashFile;
+        if (!hasFile) {
+            return;
+        }
+        if (hashFile.exists() && hashFile.lastModified() >= getFile().lastModified()) {
+            try {
+                PieceHashes existing = PieceHashes.read(hashFile);
+                if (existing.matchesLayout(fileSize, pieceSize)) {
+                    this.pieceHashes = existing;
+                    System.out.println("Peer " + peerID + " reusing piece hashes from " + hashFile.getPath());
+                    return;
+                }
+            } catch (IOException e) {
+                System.err.println("Regenerating unreadable piece hash file " + hashFile.getPath() + ": " + e.getMessage());
             }
-            System.out.println("File segmented for Peer " + peerID);
         }
+        long startTime = System.nanoTime();
+        PieceHashes hashes = PieceHashes.compute(pieceStore, fileSize, pieceSize);
+        hashes.write(hashFile);
+        this.pieceHashes = hashes;
+        System.out.printf("Peer %d wrote piece hashes to %s in %d ms%n", peerID, hashFile.getPath(), (System.nanoTime() - startTime) / 1_000_000);
     }
 
+    // Null while there is no usable metadata file. Nothing is downloaded or resumed until there is one, since a
+    // piece that can't be checked is never accepted. A seed may still be writing it, so it is looked for again.
+    public PieceHashes getPieceHashes() {
+        PieceHashes hashes = pieceHashes;
+        return hashes != null ? hashes : loadPieceHashes();
+    }
 
+    private synchronized PieceHashes loadPieceHashes() {
+        long now = System.nanoTime();
+        if (pieceHashes == null && pieceHashFile != null && (lastHashLoadNanos == 0 || now - lastHashLoadNanos >= 1_000_000_000L)) {
+            lastHashLoadNanos = now;
+            try {
+                PieceHashes hashes = PieceHashes.read(pieceHashFile);
+                if (hashes.matchesLayout(fileSize, pieceSize)) {
+                    pieceHashes = hashes;
+                    if (missingHashesReported) {
+                        System.out.println("Peer " + peerID + " loaded piece hashes from " + pieceHashFile.getPath() + ", downloading");
+                    }
+                } else if (!missingHashesReported) {
+                    System.err.println("ERROR: piece hash file " + pieceHashFile.getPath() + " does not match FileSize/PieceSize, no pieces are downloaded until it does");
+                    missingHashesReported = true;
+                }
+            } catch (IOException e) {
+                if (!missingHashesReported) {
+                    System.err.println("ERROR: cannot read piece hash file " + pieceHashFile.getPath() + ", no pieces are downloaded until it is available: " + e.getMessage());
+                    missingHashesReported = true;
+                }
+            }
+        }
+        return pieceHashes;
+    }
 
-
-    public byte[] getFullFileData(int peerID) {
-        // Enter File name here
-        String fileName = "D:\\Grad Sem Material\\Sem 1\\CN - CNT5106C\\Project\\development\\BitTorrent-Application---Java\\thefile";
-
-        File file = new File(fileName);
-
-        if (!file.exists()) {
-            System.err.println("Error: The specified file does not exist - " + file.getAbsolutePath());
-            return null; // Exit early if the file doesn't exist
+    // Pieces a previous run completed, from peer_<id>/<fileName>.journal. They still have to be verified.
+    public List<Integer> restoreCompletedPieces() {
+        journal = new BitfieldJournal(new File("peer_" + peerID + File.separator + fileName + ".journal"));
+        try {
+            return journal.restore(pieceStore.getTotalPieces());
+        } catch (IOException e) {
+            System.err.println("Error reading bitfield journal for Peer " + peerID + ": " + e.getMessage());
+            return Collections.emptyList();
         }
+    }
 
-        byte[] fileData = new byte[(int) file.length()];
+    // Rewrite the journal with the pieces that survived verification; appends go after them
+    public void checkpointJournal(Collection<Integer> pieces) {
+        try {
+            journal.checkpoint(pieces);
+        } catch (IOException e) {
+            System.err.println("Error writing bitfield journal for Peer " + peerID + ": " + e.getMessage());
+        }
+    }
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
-            bis.read(fileData);
-            System.out.println("File read successfully: " + file.getAbsolutePath());
+    public void recordCompletedPiece(int pieceIndex) {
+        if (journal == null) {
+            return; // Seeds don't keep a journal
+        }
+        try {
+            journal.append(pieceIndex);
         } catch (IOException e) {
-            System.err.println("Error reading full file data: " + e.getMessage());
-            return null;
+            System.err.println("Error appending piece " + pieceIndex + " to the bitfield journal: " + e.getMessage());
         }
+    }
 
-        return fileData;
+    // The complete file lives in the peer's own folder
+    public File getFile() {
+        return new File("peer_" + peerID + File.separator + fileName);
     }
 
+    public PieceStore getPieceStore() {
+        return pieceStore;
+    }
 
-    public static void writeFullFile(int peerID, byte[] fileData) {
-        String folderName = "peer_" + peerID; // Each peer's data in a separate folder
-        String fileName = folderName + File.separator + "received_file"; // The file name for the received file
+    // Zero-copy view of a block for upload
+    public FileRegion getBlockRegion(int pieceIndex, int begin, int length) {
+        return pieceStore.blockRegion(pieceIndex, begin, length);
+    }
 
-        createPeerFolder(peerID);
+    // Called once every piece is in place; the file is already assembled, only flush it (per the fsync policy)
+    public void finishDownload() {
+        writeBack.onDownloadComplete();
+        System.out.println("Full file written to disk by Peer " + peerID);
+    }
 
-        try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(fileName))) {
-            bos.write(fileData);
-            System.out.println("Full file written to disk by Peer " + peerID);
+    public void close() {
+        try {
+            if (writeBack != null) {
+                writeBack.shutdown();
+            }
+            if (journal != null) {
+                journal.close();
+            }
+            pieceStore.close();
         } catch (IOException e) {
-            System.err.println("Error writing full file to disk for Peer " + peerID + ": " + e.getMessage());
+            System.err.println("Error closing piece store for Peer " + peerID + ": " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,53 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// A slice of a file queued for upload. transferTo lets the kernel move the bytes from the page cache
+// straight to the socket (sendfile), so piece data never passes through a heap byte[].
+public class FileRegion {
+    private final FileChannel fileChannel;
+    private final boolean closeWhenDone;
+    private long position;
+    private long remaining;
+
+    public FileRegion(FileChannel fileChannel, long position, long count, boolean closeWhenDone) {
+        this.fileChannel = fileChannel;
+        this.position = position;
+        this.remaining = count;
+        this.closeWhenDone = closeWhenDone;
+    }
+
+    // Returns the number of bytes moved; may be less than requested on a non-blocking socket
+    public long transferTo(WritableByteChannel target) throws IOException {
+        return transferTo(target, remaining);
+    }
+
+    // At most maxBytes (a rate limiter's grant)
+    public long transferTo(WritableByteChannel target, long maxBytes) throws IOException {
+        long transferred = fileChannel.transferTo(position, Math.min(remaining, maxBytes), target);
+        position += transferred;
+        remaining -= transferred;
+        if (remaining == 0) {
+            release();
+        }
+        return transferred;
+    }
+
+    public boolean hasRemaining() {
+        return remaining > 0;
+    }
+
+    public long getRemaining() {
+        return remaining;
+    }
+
+    public void release() {
+        if (closeWhenDone) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing file region: " + e.getMessage());
+            }
+        }
+    }
+}
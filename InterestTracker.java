@@ -0,0 +1,61 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps, for every neighbor, the number of pieces it has that we lack. A HAVE from the neighbor or a piece we
+// complete adjusts that count in O(1), and interest only flips when a count crosses zero, so we never rescan
+// bitfields after the initial BITFIELD exchange.
+public class InterestTracker {
+    private final BitfieldManager bitfieldManager;
+    private final Map<Integer, BitfieldManager> peerBitfields = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> missingPieceCounts = new HashMap<>();
+
+    public InterestTracker(BitfieldManager bitfieldManager) {
+        this.bitfieldManager = bitfieldManager;
+    }
+
+    public BitfieldManager getPeerBitfield(int peerID) {
+        return peerBitfields.get(peerID);
+    }
+
+    // Full BITFIELD from a neighbor: one word-level AND NOT to seed the count. Returns whether we are interested.
+    public synchronized boolean onBitfield(int peerID, BitfieldManager peerBitfield) {
+        peerBitfields.put(peerID, peerBitfield);
+        int missing = peerBitfield.countAndNot(bitfieldManager);
+        missingPieceCounts.put(peerID, missing);
+        return missing > 0;
+    }
+
+    // The neighbor announced a new piece. Returns true when this makes us interested in it.
+    public synchronized boolean onHave(int peerID, int pieceIndex) {
+        BitfieldManager peerBitfield = peerBitfields.get(peerID);
+        if (peerBitfield == null || !peerBitfield.setPiece(pieceIndex) || bitfieldManager.hasPiece(pieceIndex)) {
+            return false;
+        }
+        return missingPieceCounts.merge(peerID, 1, Integer::sum) == 1;
+    }
+
+    // We completed a piece. Marks it in our bitfield and returns the neighbors we are no longer interested in.
+    // Setting our bit under the same lock as onHave keeps every (peer, piece) pair counted exactly once.
+    public synchronized List<Integer> onPieceCompleted(int pieceIndex) {
+        if (!bitfieldManager.setPiece(pieceIndex)) {
+            return Collections.emptyList(); // Someone else already completed it
+        }
+
+        List<Integer> notInterested = new ArrayList<>();
+        for (Map.Entry<Integer, BitfieldManager> entry : peerBitfields.entrySet()) {
+            if (entry.getValue().hasPiece(pieceIndex)) {
+                int peerID = entry.getKey();
+                if (missingPieceCounts.merge(peerID, -1, Integer::sum) == 0) {
+                    notInterested.add(peerID);
+                }
+            }
+        }
+        return notInterested;
+    }
+
+    // Returns the neighbor's bitfield so its pieces can be taken out of the availability counts
+    public synchronized BitfieldManager removePeer(int peerID) {
+        missingPieceCounts.remove(peerID);
+        return peerBitfields.remove(peerID);
+    }
+}
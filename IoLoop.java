@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One selector thread. Every peer channel is owned by exactly one loop, so its read/write state is only touched here.
+public class IoLoop implements Runnable {
+    private final Selector selector;
+    private final ConnectionManager connectionManager;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<TimedTask> timers = new PriorityQueue<>(Comparator.comparingLong(timer -> timer.deadline)); // Loop thread only
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public IoLoop(ConnectionManager connectionManager, String name) throws IOException {
+        this.selector = Selector.open();
+        this.connectionManager = connectionManager;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(false);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    // Run a task on the loop thread (registrations, interest changes, flushes requested by other threads)
+    public void execute(Runnable task) {
+        pendingTasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    // Run a task on the loop thread after a delay; only called from the loop thread (rate limiter wake-ups)
+    public void schedule(Runnable task, long delayNanos) {
+        timers.add(new TimedTask(System.nanoTime() + delayNanos, task));
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void registerServer(ServerSocketChannel serverChannel) {
+        execute(() -> {
+            try {
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                System.err.println("Error registering server channel: " + e.getMessage());
+            }
+        });
+    }
+
+    public void register(PeerConnection connection, boolean connected) {
+        execute(() -> {
+            try {
+                int interestOps = connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+                connection.setKey(connection.getChannel().register(selector, interestOps, connection));
+                if (connected) {
+                    // Accepted sockets (and loopback connects) are usable straight away
+                    connection.onConnected();
+                }
+            } catch (IOException e) {
+                System.err.println("Error registering channel: " + e.getMessage());
+                connection.close();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // Tasks queued from this thread (including by timers) don't wake the selector, so drain them before blocking
+                runDueTimers();
+                runPendingTasks();
+                long timeoutMillis = millisUntilNextTimer();
+                if (timeoutMillis > 0) {
+                    selector.select(timeoutMillis);
+                } else {
+                    selector.select();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        connectionManager.acceptConnection((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+
+                    PeerConnection connection = (PeerConnection) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            connection.finishConnect();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        System.err.println("Connection to peer " + connection.getRemotePeerID() + " failed: " + e.getMessage());
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        // A bug or a malformed message on one connection must not take the loop (and its other peers) down
+                        System.err.println("Error handling peer " + connection.getRemotePeerID() + ", disconnecting: " + e);
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error in I/O loop " + thread.getName() + ": " + e.getMessage());
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing selector: " + e.getMessage());
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error running I/O task: " + e.getMessage());
+            }
+        }
+    }
+
+    private void runDueTimers() {
+        long now = System.nanoTime();
+        TimedTask timer;
+        while ((timer = timers.peek()) != null && timer.deadline <= now) {
+            timers.poll();
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error running I/O timer: " + e.getMessage());
+            }
+        }
+    }
+
+    // At least 1, or 0 if no timer is pending (select without a timeout)
+    private long millisUntilNextTimer() {
+        TimedTask timer = timers.peek();
+        return timer == null ? 0 : Math.max(1, (timer.deadline - System.nanoTime() + 999_999) / 1_000_000);
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private static final class TimedTask {
+        private final long deadline;
+        private final Runnable task;
+
+        TimedTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+}
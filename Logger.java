@@ -1,18 +1,62 @@
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.List;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Set;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 
+// Log lines are only queued by the caller: the capture time and the message go into a ring of preallocated slots,
+// and a background thread formats them and appends them to the one open FileChannel in batches, about every
+// FLUSH_INTERVAL_MILLIS or sooner once the ring is half full. Timestamps keep the LocalDateTime.toString() format;
+// the date and time up to the second are formatted once per second. When the ring is full the caller either waits
+// for the writer (the default, nothing is lost) or the line is dropped and counted in the log.
 public class Logger {
+    public static final int DEFAULT_QUEUE_SIZE = 16 * 1024;
+
+    private static final long FLUSH_INTERVAL_MILLIS = 100;
+
     private File logFile;
     private int peerID;
     private boolean logComplete = false;
 
-    public Logger(int peerID) {
+    private final boolean dropWhenFull;
+    private FileChannel channel;
+    private final Thread writer;
+
+    // Ring of pending lines, guarded by this
+    private final long[] epochSeconds;
+    private final int[] nanos;
+    private final String[] messages;
+    private int head = 0; // Next slot to write out
+    private int count = 0;
+    private long dropped = 0;
+    private boolean closed = false;
+
+    // Writer thread only: the lines taken from the ring for one batch
+    private final long[] takenSeconds;
+    private final int[] takenNanos;
+    private final String[] takenMessages;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedPrefix;     // "yyyy-MM-ddTHH:mm:ss" of cachedSecond
+    private String cachedMinuteOnly; // "yyyy-MM-ddTHH:mm", what toString() prints on the exact minute
+    private final StringBuilder batch = new StringBuilder();
+
+    // queueSize: lines that can wait for the writer; dropWhenFull: drop new lines instead of waiting when it is full
+    public Logger(int peerID, int queueSize, boolean dropWhenFull) {
         this.peerID = peerID;
+        this.dropWhenFull = dropWhenFull;
+        this.epochSeconds = new long[queueSize];
+        this.nanos = new int[queueSize];
+        this.messages = new String[queueSize];
+        this.takenSeconds = new long[queueSize];
+        this.takenNanos = new int[queueSize];
+        this.takenMessages = new String[queueSize];
         logFile = new File(String.format("log_peer_%s.log", peerID));
         try {
             if (logFile.createNewFile()) {
@@ -20,29 +64,185 @@ public class Logger {
             } else {
                 System.out.println("Log file already exists.");
             }
+            channel = FileChannel.open(logFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
         } catch (IOException e) {
             System.out.println("An error occurred while creating the log file: " + e.getMessage());
         }
+        this.writer = new Thread(this::runWriter, "peer-" + peerID + "-log-writer");
+        writer.setDaemon(true);
+        writer.start();
     }
 
     public void log(String message) {
-        try (FileWriter fw = new FileWriter(logFile, true)) {
-            fw.write(String.format("%s: %s.%n", LocalDateTime.now(), message));
+        Instant now = Instant.now();
+        synchronized (this) {
+            while (count == messages.length && !closed) {
+                if (dropWhenFull) {
+                    dropped++;
+                    return;
+                }
+                notifyAll(); // Make sure the writer is draining
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (closed) {
+                return;
+            }
+            int slot = (head + count) % messages.length;
+            epochSeconds[slot] = now.getEpochSecond();
+            nanos[slot] = now.getNano();
+            messages[slot] = message;
+            count++;
+            if (count == messages.length / 2) {
+                notifyAll(); // Wake the writer early rather than let the ring fill up
+            }
+        }
+    }
+
+    // Write out everything queued and stop the writer; later lines are ignored
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            System.out.println("An error occurred while closing the log file: " + e.getMessage());
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            boolean stopping;
+            long droppedNow;
+            int taken;
+            synchronized (this) {
+                if (count < messages.length / 2 && !closed) {
+                    try {
+                        wait(FLUSH_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                stopping = closed;
+                droppedNow = dropped;
+                dropped = 0;
+                // Only copy the lines out here; they are formatted after the lock is released
+                taken = count;
+                for (int i = 0; i < taken; i++) {
+                    takenSeconds[i] = epochSeconds[head];
+                    takenNanos[i] = nanos[head];
+                    takenMessages[i] = messages[head];
+                    messages[head] = null;
+                    head = (head + 1) % messages.length;
+                }
+                count = 0;
+                notifyAll(); // Callers waiting for room
+            }
+            for (int i = 0; i < taken; i++) {
+                appendLine(takenSeconds[i], takenNanos[i], takenMessages[i]);
+                takenMessages[i] = null;
+            }
+            if (droppedNow > 0) {
+                Instant now = Instant.now();
+                appendLine(now.getEpochSecond(), now.getNano(), String.format("Peer %d logger dropped %d lines, the log queue was full", peerID, droppedNow));
+            }
+            writeBatch();
+            if (stopping) {
+                return;
+            }
+        }
+    }
+
+    private void writeBatch() {
+        if (batch.length() == 0) {
+            return;
+        }
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(batch.toString());
+        batch.setLength(0);
+        if (channel == null) {
+            return;
+        }
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
         } catch (IOException e) {
             System.out.println("An error occurred while writing to the log file: " + e.getMessage());
         }
     }
 
+    // Same text as String.format("%s: %s.%n", LocalDateTime.now(), message)
+    private void appendLine(long epochSecond, int nano, String message) {
+        if (epochSecond != cachedSecond) {
+            cachedSecond = epochSecond;
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), zone);
+            String full = time.withNano(0).toString();
+            cachedMinuteOnly = time.getSecond() == 0 ? full : null;
+            cachedPrefix = time.getSecond() == 0 ? full + ":00" : full;
+        }
+        if (nano == 0 && cachedMinuteOnly != null) {
+            batch.append(cachedMinuteOnly);
+        } else {
+            batch.append(cachedPrefix);
+            appendFraction(nano);
+        }
+        batch.append(": ").append(message).append('.').append(System.lineSeparator());
+    }
+
+    // LocalTime.toString(): no fraction, or 3, 6 or 9 digits, whichever is shortest without losing precision
+    private void appendFraction(int nano) {
+        if (nano == 0) {
+            return;
+        }
+        int digits;
+        int value;
+        if (nano % 1_000_000 == 0) {
+            digits = 3;
+            value = nano / 1_000_000;
+        } else if (nano % 1000 == 0) {
+            digits = 6;
+            value = nano / 1000;
+        } else {
+            digits = 9;
+            value = nano;
+        }
+        batch.append('.');
+        for (int scale = pow10(digits - 1); scale > 0; scale /= 10) {
+            batch.append((char) ('0' + value / scale % 10));
+        }
+    }
+
+    private static int pow10(int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= 10;
+        }
+        return result;
+    }
+
     public void logConnection(int peerID, boolean initiatedConnection) {
         if (initiatedConnection) {
-            log(String.format("Peer %d makes a connection to Peer %d", this.peerID, peerID));
+            log("Peer " + this.peerID + " makes a connection to Peer " + peerID);
         } else {
-            log(String.format("Peer %d is connected from Peer %d", this.peerID, peerID));
+            log("Peer " + this.peerID + " is connected from Peer " + peerID);
         }
     }
 
     public void logPreferredNeighbors(List<Integer> neighborIDs) {
-        StringBuilder message = new StringBuilder(String.format("Peer %d has the preferred neighbors: ", peerID));
+        StringBuilder message = new StringBuilder("Peer ").append(peerID).append(" has the preferred neighbors: ");
         String delimiter = "";
         for (int neighborID : neighborIDs) {
             message.append(delimiter).append(neighborID);
@@ -52,37 +252,45 @@ public class Logger {
     }
 
     public void logOptimisticallyUnchokedNeighbor(int neighborID) {
-        log(String.format("Peer %d has the optimistically unchoked neighbor %d", peerID, neighborID));
+        log("Peer " + peerID + " has the optimistically unchoked neighbor " + neighborID);
     }
 
     public void logUnchoked(int byPeerID) {
-        log(String.format("Peer %d is unchoked by %d", peerID, byPeerID));
+        log("Peer " + peerID + " is unchoked by " + byPeerID);
     }
 
     public void logChoked(int byPeerID) {
-        log(String.format("Peer %d is choked by %d", peerID, byPeerID));
+        log("Peer " + peerID + " is choked by " + byPeerID);
     }
 
-    public void logHave(int fromPeerID) {
-        log(String.format("Peer %d received the 'have' message  %d", peerID, fromPeerID));
+    public void logHave(int fromPeerID, int pieceIndex) {
+        log("Peer " + peerID + " received the 'have' message from " + fromPeerID + " for the piece " + pieceIndex);
     }
 
     public void logInterested(int fromPeerID) {
-        log(String.format("Peer %d received the 'interested' message from %d", peerID, fromPeerID));
+        log("Peer " + peerID + " received the 'interested' message from " + fromPeerID);
     }
 
     public void logNotInterested(int fromPeerID) {
-        log(String.format("Peer %d received the 'not interested' message from %d", peerID, fromPeerID));
+        log("Peer " + peerID + " received the 'not interested' message from " + fromPeerID);
     }
 
     public void logDownload(int fromPeerID) {
-        log(String.format("Peer %d has downloaded the file from %d", peerID, fromPeerID));
+        log("Peer " + peerID + " has downloaded the file from " + fromPeerID);
+    }
+
+    public void logPieceDownload(int pieceIndex, int fromPeerID, int pieceCount) {
+        log("Peer " + peerID + " has downloaded the piece " + pieceIndex + " from " + fromPeerID + ". Now the number of pieces it has is " + pieceCount);
+    }
+
+    public void logCorruptPiece(int pieceIndex, Set<Integer> fromPeerIDs) {
+        log("Peer " + peerID + " discarded the piece " + pieceIndex + " from " + fromPeerIDs + ": hash mismatch");
     }
 
     // Log when a peer has completed downloading the entire file
     public void logComplete() {
         if (logComplete) return;
-        log(String.format("Peer %d has downloaded the complete file", peerID));
+        log("Peer " + peerID + " has downloaded the complete file");
         logComplete = true;
     }
 }
@@ -0,0 +1,134 @@
+import java.util.*;
+
+// Download state of one piece that is being fetched block by block, possibly from several peers at once
+public class PartialPiece {
+    private static final int UNREQUESTED = -1;
+
+    private final int pieceIndex;
+    private final int pieceLength;
+    private final int blockSize;
+    private final int[] requestedFrom;   // Peer each block is currently requested from, or UNREQUESTED
+    private final Map<Integer, Set<Integer>> duplicateRequests = new HashMap<>(); // Endgame: block -> extra peers
+    private final Set<Integer> contributors = new HashSet<>(); // Peers that sent blocks, blamed if the hash fails
+    private final boolean[] received;
+    private int writtenCount = 0;
+    private int owner = UNREQUESTED;     // Peer the piece is assigned to, so peers don't crowd the same piece
+
+    public PartialPiece(int pieceIndex, int pieceLength, int blockSize) {
+        this.pieceIndex = pieceIndex;
+        this.pieceLength = pieceLength;
+        this.blockSize = blockSize;
+        int blockCount = (pieceLength + blockSize - 1) / blockSize;
+        this.requestedFrom = new int[blockCount];
+        this.received = new boolean[blockCount];
+        Arrays.fill(requestedFrom, UNREQUESTED);
+    }
+
+    public int getPieceIndex() {
+        return pieceIndex;
+    }
+
+    public int getOwner() {
+        return owner;
+    }
+
+    public void setOwner(int peerID) {
+        this.owner = peerID;
+    }
+
+    public boolean isOrphaned() {
+        return owner == UNREQUESTED;
+    }
+
+    // Hand out the first block nobody is fetching yet, or null if every block is requested or received
+    public Block assignBlock(int peerID) {
+        for (int i = 0; i < received.length; i++) {
+            if (!received[i] && requestedFrom[i] == UNREQUESTED) {
+                requestedFrom[i] = peerID;
+                return blockAt(i);
+            }
+        }
+        return null;
+    }
+
+    // Endgame: ask this peer too for a block that is already requested from someone else, or null if there is none
+    public Block assignDuplicateBlock(int peerID) {
+        for (int i = 0; i < received.length; i++) {
+            if (received[i] || requestedFrom[i] == peerID) {
+                continue;
+            }
+            Set<Integer> extraPeers = duplicateRequests.computeIfAbsent(i, block -> new HashSet<>());
+            if (extraPeers.add(peerID)) {
+                return blockAt(i);
+            }
+        }
+        return null;
+    }
+
+    // Returns true if the block was new; false for duplicates and offsets that don't match a block
+    public boolean markReceived(int begin, int length, int peerID) {
+        if (begin < 0 || begin >= pieceLength || begin % blockSize != 0) {
+            return false;
+        }
+        int block = begin / blockSize;
+        if (block >= received.length || received[block] || blockAt(block).getLength() != length) {
+            return false;
+        }
+        received[block] = true;
+        contributors.add(peerID);
+        return true;
+    }
+
+    // The block arrived: every other peer it was requested from should be sent a CANCEL
+    public List<Integer> takeOtherRequesters(int begin, int senderPeerID) {
+        int block = begin / blockSize;
+        List<Integer> others = new ArrayList<>();
+        if (requestedFrom[block] != UNREQUESTED && requestedFrom[block] != senderPeerID) {
+            others.add(requestedFrom[block]);
+        }
+        requestedFrom[block] = UNREQUESTED;
+        Set<Integer> extraPeers = duplicateRequests.remove(block);
+        if (extraPeers != null) {
+            extraPeers.remove(senderPeerID);
+            others.addAll(extraPeers);
+        }
+        return others;
+    }
+
+    // A write failed, fetch the block again
+    public void unmarkReceived(int begin) {
+        int block = begin / blockSize;
+        if (received[block]) {
+            received[block] = false;
+        }
+    }
+
+    // Called once a received block is on disk; returns true when every block of the piece has been written
+    public boolean markWritten() {
+        return ++writtenCount == received.length;
+    }
+
+    public Set<Integer> getContributors() {
+        return contributors;
+    }
+
+    // Forget the peer's outstanding requests so the blocks can be assigned to someone else
+    public void release(int peerID) {
+        if (owner == peerID) {
+            owner = UNREQUESTED;
+        }
+        for (int i = 0; i < requestedFrom.length; i++) {
+            if (requestedFrom[i] == peerID && !received[i]) {
+                requestedFrom[i] = UNREQUESTED;
+            }
+        }
+        for (Set<Integer> extraPeers : duplicateRequests.values()) {
+            extraPeers.remove(peerID);
+        }
+    }
+
+    private Block blockAt(int block) {
+        int begin = block * blockSize;
+        return new Block(pieceIndex, begin, Math.min(blockSize, pieceLength - begin));
+    }
+}
@@ -1,5 +1,6 @@
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public class Peer {
     private final int peerID;
@@ -9,6 +10,8 @@ public class Peer {
     private ChokingManager chokingManager;
     private PieceManager pieceManager;
     private FileManager fileManager;
+    private PieceVerifier pieceVerifier;
+    private Logger logger;
 
     // Constructor
     public Peer(int peerID) {
@@ -20,18 +23,39 @@ public class Peer {
         configManager.loadConfig(configFilePath);
         configManager.loadPeerInfo(peerInfoFilePath);
 
-        int fileSize = configManager.getFileSize();
+        long fileSize = configManager.getFileSize();
         int pieceSize = configManager.getPieceSize();
         PeerInfo peerInfo = configManager.getPeerInfo().get(peerID);
 
         this.bitfieldManager = new BitfieldManager(fileSize, pieceSize);
-        this.fileManager = new FileManager();
+        this.fileManager = new FileManager(peerID, configManager.getFileName(), fileSize, pieceSize);
+
+        try {
+            fileManager.openStore(peerInfo.hasFile());
+        } catch (IOException e) {
+            System.err.println("Error opening piece store for Peer " + peerID + ": " + e.getMessage());
+            return;
+        }
+
+        fileManager.openPieceCache(configManager.getPieceCacheSize());
+
+        // Piece hashes live next to Common.cfg as <FileName>.sha1
+        File configDirectory = new File(configFilePath).getAbsoluteFile().getParentFile();
+        try {
+            fileManager.openPieceHashes(new File(configDirectory, configManager.getFileName() + ".sha1"), peerInfo.hasFile());
+        } catch (IOException e) {
+            System.err.println("Error writing piece hashes for Peer " + peerID + ": " + e.getMessage());
+        }
+        this.pieceVerifier = new PieceVerifier(peerID, fileManager);
 
         if (peerInfo.hasFile()) {
             bitfieldManager.setAllPieces();
+        } else {
+            resumeDownload();
         }
 
-        this.connectionManager = new ConnectionManager(peerID, configManager.getPeerInfo().get(peerID).hasFile(), bitfieldManager, fileManager);
+        this.logger = new Logger(peerID, configManager.getLogQueueSize(), configManager.isLogDropWhenFull());
+        this.connectionManager = new ConnectionManager(peerID, bitfieldManager.hasCompleteFile(), bitfieldManager, fileManager, logger);
         this.chokingManager = new ChokingManager(
                 peerID,
                 configManager.getNumberOfPreferredNeighbors(),
@@ -39,11 +63,16 @@ public class Peer {
                 configManager.getOptimisticUnchokingInterval()
         );
 
-        this.pieceManager = new PieceManager(bitfieldManager, connectionManager, chokingManager);
+        this.pieceManager = new PieceManager(bitfieldManager, connectionManager, fileManager, configManager.getBlockSize());
 
-        connectionManager.initialize(chokingManager, pieceManager); // Inject dependencies
+        connectionManager.initialize(chokingManager, pieceManager, pieceVerifier); // Inject dependencies
+        fileManager.openWriteBack(configManager.getWriteQueueSize(), configManager.getFsyncEveryPieces(),
+                paused -> connectionManager.setReadsPaused(paused));
         chokingManager.initialize(connectionManager); // Inject dependency
 
+        connectionManager.configureRateLimits(configManager.getMaxUploadRate(), configManager.getMaxDownloadRate(),
+                configManager.getMaxPeerUploadRate(), configManager.getMaxPeerDownloadRate());
+        connectionManager.configureUploads(configManager.getMaxUploadBlocksInFlight(), configManager.getMaxPeerUploadBlocksInFlight());
         connectionManager.startServer(configManager.getPort());
 
         connectionManager.connectToPeers(configManager.getPeerInfo());
@@ -52,18 +81,40 @@ public class Peer {
 
     }
 
+    // Pick up where a previous run stopped: pieces in the journal count once their hash checks out
+    private void resumeDownload() {
+        List<Integer> restored = fileManager.restoreCompletedPieces();
+        if (!restored.isEmpty() && fileManager.getPieceHashes() == null) {
+            // The journal is left as it is, so a later run with the hash file can still resume from it
+            System.err.println("ERROR: Peer " + peerID + " cannot verify the " + restored.size() + " journaled pieces without piece hashes, not resuming them");
+            return;
+        }
+        long startTime = System.nanoTime();
+        List<Integer> verified = pieceVerifier.verifyAll(restored);
+        for (int pieceIndex : verified) {
+            bitfieldManager.setPiece(pieceIndex);
+        }
+        fileManager.checkpointJournal(verified);
+        if (!restored.isEmpty()) {
+            System.out.printf("Peer %d resumed with %d of %d pieces (%d failed verification) in %d ms%n", peerID, verified.size(),
+                    bitfieldManager.getTotalPieces(), restored.size() - verified.size(), (System.nanoTime() - startTime) / 1_000_000);
+        }
+    }
+
     public void run() {
         System.out.println("Peer " + peerID + " started");
         // Start the choking management process
         chokingManager.initialize();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            connectionManager.logStats();
+            logger.close(); // Write out whatever is still queued
+        }));
     }
 
 
     // Finalize the download process
     public void finalizeDownload() {
-        System.out.println("Peer " + peerID + " finalized");
-        connectionManager.sendHaveMessageToAll(bitfieldManager.getBitfield());
-        System.out.println("Peer " + peerID + ": Download complete!");
+        connectionManager.finalizeDownload();
     }
 
     // Main method to start the peer
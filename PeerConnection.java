@@ -0,0 +1,458 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// State for a single neighbor channel: partial reads, queued writes and the remote peer ID once the handshake arrives.
+// Reads, writes and interest changes only happen on the owning IoLoop thread; enqueue() is safe from any thread.
+public class PeerConnection {
+    private static final int HANDSHAKE_LENGTH = 32;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final IoLoop loop;
+    private final ConnectionManager connectionManager;
+    private final boolean outgoing;
+    private final int maxFrameLength; // Largest length prefix a valid message can have
+    private volatile int remotePeerID;
+    private SelectionKey key;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private boolean handshakeReceived = false;
+
+    // Holds framed ByteBuffers and QueuedBlocks, written strictly in order
+    private final Queue<Object> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+    // Bumped on every CHOKE we send. A block is only queued and sent while the epoch it was handed out in is current,
+    // so a block still being read from disk at choke time never reaches the neighbor.
+    private final AtomicInteger chokeEpoch = new AtomicInteger();
+
+    // Every byte read from / written to the socket, for the choker
+    private final RateMeter downloadMeter;
+    private final RateMeter uploadMeter;
+
+    // Per-peer limits under the global ones. An empty bucket turns OP_READ / OP_WRITE off until a timer on the
+    // loop turns it back on once tokens are available.
+    private final TokenBucket downloadLimiter;
+    private final TokenBucket uploadLimiter;
+    private boolean readPaused = false;     // Write-back backpressure
+    private boolean readThrottled = false;  // Download limit
+    private boolean writeThrottled = false; // Upload limit
+
+    public PeerConnection(SocketChannel channel, IoLoop loop, ConnectionManager connectionManager, boolean outgoing, int remotePeerID) {
+        this.channel = channel;
+        this.loop = loop;
+        this.connectionManager = connectionManager;
+        this.outgoing = outgoing;
+        this.remotePeerID = remotePeerID;
+        this.maxFrameLength = connectionManager.getMaxFrameLength();
+        this.downloadMeter = new RateMeter(connectionManager.getRateWindowMillis());
+        this.uploadMeter = new RateMeter(connectionManager.getRateWindowMillis());
+        this.downloadLimiter = connectionManager.newDownloadLimiter();
+        this.uploadLimiter = connectionManager.newUploadLimiter();
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public IoLoop getLoop() {
+        return loop;
+    }
+
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    public int getRemotePeerID() {
+        return remotePeerID;
+    }
+
+    public void setRemotePeerID(int remotePeerID) {
+        this.remotePeerID = remotePeerID;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public RateMeter getDownloadMeter() {
+        return downloadMeter;
+    }
+
+    public RateMeter getUploadMeter() {
+        return uploadMeter;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    void finishConnect() throws IOException {
+        if (channel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_READ);
+            onConnected();
+        }
+    }
+
+    void onConnected() {
+        connectionManager.onConnected(this);
+        flushSafely();
+    }
+
+    // Read whatever is available and dispatch every complete frame
+    void read() throws IOException {
+        long allowance = downloadLimiter.acquire(readBuffer.remaining());
+        if (allowance == 0 && readBuffer.hasRemaining()) {
+            readThrottled = true;
+            updateReadInterest();
+            loop.schedule(() -> {
+                readThrottled = false;
+                updateReadInterest();
+            }, downloadLimiter.nanosUntilAvailable());
+            return;
+        }
+
+        int limit = readBuffer.limit();
+        readBuffer.limit(readBuffer.position() + (int) allowance);
+        int bytesRead;
+        try {
+            bytesRead = channel.read(readBuffer);
+        } finally {
+            readBuffer.limit(limit);
+        }
+        downloadLimiter.refund(allowance - Math.max(bytesRead, 0));
+        if (bytesRead == -1) {
+            System.out.println("Peer " + remotePeerID + " closed the connection");
+            close();
+            return;
+        }
+        downloadMeter.add(bytesRead);
+
+        readBuffer.flip();
+        int needed = parseFrames();
+        readBuffer.compact();
+
+        // Grow the buffer when a single frame is larger than what it can hold
+        if (needed > readBuffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(needed);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    // Returns the number of bytes the next incomplete frame needs, or 0
+    private int parseFrames() throws IOException {
+        if (!handshakeReceived) {
+            if (readBuffer.remaining() < HANDSHAKE_LENGTH) {
+                return 0;
+            }
+            byte[] handshake = new byte[HANDSHAKE_LENGTH];
+            readBuffer.get(handshake);
+            handshakeReceived = true;
+            connectionManager.onHandshake(this, handshake);
+        }
+
+        while (!closed && readBuffer.remaining() >= 4) {
+            int length = readBuffer.getInt(readBuffer.position());
+            // Checked before the buffer grows to hold the frame, so a bogus length cannot make the loop allocate it
+            if (length < 1 || length > maxFrameLength) {
+                throw new IOException("Invalid message length " + length);
+            }
+            if (readBuffer.remaining() - 4 < length) {
+                return 4 + length;
+            }
+
+            readBuffer.position(readBuffer.position() + 4);
+            byte type = readBuffer.get();
+            ByteBuffer payload = readBuffer.slice();
+            payload.limit(length - 1);
+            readBuffer.position(readBuffer.position() + length - 1);
+
+            connectionManager.processIncomingMessage(this, type, payload);
+        }
+        return 0;
+    }
+
+    // Stop or resume reading from the socket (backpressure); applied on the owning loop
+    public void setReadPaused(boolean paused) {
+        loop.execute(() -> {
+            readPaused = paused;
+            updateReadInterest();
+        });
+    }
+
+    // OP_READ is on unless backpressure or the download limit holds it off
+    private void updateReadInterest() {
+        if (key != null && key.isValid() && channel.isConnected()) {
+            boolean reading = !readPaused && !readThrottled;
+            key.interestOps(reading ? key.interestOps() | SelectionKey.OP_READ : key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    // Queue a fully framed message; the owning loop writes it when the socket is writable
+    public void enqueue(ByteBuffer message) {
+        enqueueEntry(message);
+    }
+
+    public int getChokeEpoch() {
+        return chokeEpoch.get();
+    }
+
+    // Queue a PIECE message for one block handed out in the given choke epoch; it can still be cancelled until its
+    // first byte is written
+    public void enqueueBlock(Block block, ByteBuffer header, FileRegion body, int epoch) {
+        enqueueBlock(new QueuedBlock(block, header, body, null, epoch));
+    }
+
+    // Same, with the block bytes taken from a shared cached piece; the piece is released once they are written
+    public void enqueueBlock(Block block, ByteBuffer header, PieceCache.CachedPiece piece, int epoch) {
+        enqueueBlock(new QueuedBlock(block, header, null, piece, epoch));
+    }
+
+    private void enqueueBlock(QueuedBlock queued) {
+        if (closed) {
+            queued.release(); // Its upload slot was written off with the connection
+            return;
+        }
+        if (queued.epoch != chokeEpoch.get()) {
+            queued.release(); // Choked while the block was being loaded
+            connectionManager.onUploadSlotsFreed(remotePeerID, 1);
+            return;
+        }
+        enqueueEntry(queued);
+    }
+
+    // Drop a queued block the neighbor no longer wants. Returns false if it is already (partly) on the wire.
+    public boolean cancelBlock(Block block) {
+        Iterator<Object> entries = writeQueue.iterator();
+        while (entries.hasNext()) {
+            if (entries.next() instanceof QueuedBlock queued && queued.block.equals(block) && !queued.isStarted()) {
+                entries.remove();
+                queued.release();
+                connectionManager.onUploadSlotsFreed(remotePeerID, 1);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Called before a CHOKE is sent: blocks from before it that are not on the wire yet are dropped, here for the
+    // ones already queued and on enqueue for the ones still being loaded
+    public void onChoked() {
+        chokeEpoch.incrementAndGet();
+        loop.execute(() -> {
+            int dropped = 0;
+            Iterator<Object> entries = writeQueue.iterator();
+            while (entries.hasNext()) {
+                if (entries.next() instanceof QueuedBlock queued && !queued.isStarted() && queued.epoch != chokeEpoch.get()) {
+                    entries.remove();
+                    queued.release();
+                    dropped++;
+                }
+            }
+            if (dropped > 0) {
+                connectionManager.onUploadSlotsFreed(remotePeerID, dropped);
+            }
+        });
+    }
+
+    private void enqueueEntry(Object entry) {
+        if (closed) {
+            return;
+        }
+        writeQueue.add(entry);
+        if (loop.inLoop()) {
+            flushSafely();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                flushSafely();
+            });
+        }
+    }
+
+    void flush() throws IOException {
+        if (key == null || !key.isValid() || !channel.isConnected() || writeThrottled) {
+            return; // A throttled connection is flushed by its timer
+        }
+
+        int blocksFinished = 0;
+        try {
+            Object entry;
+            while ((entry = writeQueue.peek()) != null) {
+                if (entry instanceof QueuedBlock queued && !queued.isStarted() && queued.epoch != chokeEpoch.get()) {
+                    writeQueue.poll(); // The neighbor was choked after this block was queued
+                    queued.release();
+                    blocksFinished++;
+                    continue;
+                }
+                long remaining = remainingOf(entry);
+                long allowance = uploadLimiter.acquire(remaining);
+                if (allowance == 0) {
+                    writeThrottled = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    loop.schedule(() -> {
+                        writeThrottled = false;
+                        flushSafely();
+                    }, uploadLimiter.nanosUntilAvailable());
+                    return;
+                }
+
+                long written;
+                if (entry instanceof QueuedBlock queued) {
+                    written = queued.writeTo(channel, allowance);
+                } else {
+                    written = write(channel, (ByteBuffer) entry, allowance);
+                }
+                uploadMeter.add(written);
+                uploadLimiter.refund(allowance - written);
+
+                if (written == remaining) {
+                    writeQueue.poll();
+                    if (entry instanceof QueuedBlock) {
+                        blocksFinished++;
+                    }
+                } else if (written < allowance) {
+                    break; // Socket buffer is full, wait for OP_WRITE
+                }
+                // Otherwise the grant ran out mid-entry; the next acquire decides whether to wait
+            }
+
+            if (writeQueue.isEmpty()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        } finally {
+            // Only once this pass is over: the freed slots may hand this connection its next block right away
+            if (blocksFinished > 0) {
+                connectionManager.onUploadSlotsFreed(remotePeerID, blocksFinished);
+            }
+        }
+    }
+
+    private static long remainingOf(Object entry) {
+        if (entry instanceof QueuedBlock queued) {
+            return queued.remaining();
+        }
+        return ((ByteBuffer) entry).remaining();
+    }
+
+    // Write at most maxBytes of the buffer
+    private static long write(SocketChannel channel, ByteBuffer buffer, long maxBytes) throws IOException {
+        if (buffer.remaining() <= maxBytes) {
+            return channel.write(buffer);
+        }
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + (int) maxBytes);
+        try {
+            return channel.write(buffer);
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("Error writing to peer " + remotePeerID + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Object entry;
+        while ((entry = writeQueue.poll()) != null) {
+            if (entry instanceof QueuedBlock queued) {
+                queued.release();
+            }
+        }
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing connection to peer " + remotePeerID + ": " + e.getMessage());
+        }
+        connectionManager.onDisconnected(this);
+    }
+
+    // A PIECE message whose header and block bytes are written back to back. The bytes come either from the file
+    // (zero-copy transferTo) or from a cached piece shared with other uploads (gathering write).
+    private static final class QueuedBlock {
+        private final Block block;
+        private final ByteBuffer header;
+        private final FileRegion body;
+        private final PieceCache.CachedPiece piece;
+        private final ByteBuffer[] headerAndData;
+        private final int epoch; // Choke epoch it was handed out in
+
+        QueuedBlock(Block block, ByteBuffer header, FileRegion body, PieceCache.CachedPiece piece, int epoch) {
+            this.block = block;
+            this.epoch = epoch;
+            this.header = header;
+            this.body = body;
+            this.piece = piece;
+            this.headerAndData = piece != null ? new ByteBuffer[] {header, piece.slice(block.getBegin(), block.getLength())} : null;
+        }
+
+        boolean isStarted() {
+            return header.position() > 0;
+        }
+
+        long remaining() {
+            return header.remaining() + (piece != null ? headerAndData[1].remaining() : body.getRemaining());
+        }
+
+        // Writes at most maxBytes and returns how many were written; the piece is released once all of it is sent
+        long writeTo(SocketChannel channel, long maxBytes) throws IOException {
+            long written;
+            if (piece != null) {
+                long before = remaining();
+                if (before <= maxBytes) {
+                    channel.write(headerAndData);
+                } else {
+                    write(channel, header, maxBytes);
+                    if (!header.hasRemaining()) {
+                        write(channel, headerAndData[1], maxBytes - (before - remaining()));
+                    }
+                }
+                written = before - remaining();
+                if (!headerAndData[1].hasRemaining()) {
+                    piece.release();
+                }
+                return written;
+            }
+            written = 0;
+            if (header.hasRemaining()) {
+                written = write(channel, header, maxBytes);
+                if (header.hasRemaining()) {
+                    return written;
+                }
+            }
+            return written + body.transferTo(channel, maxBytes - written);
+        }
+
+        void release() {
+            if (piece != null) {
+                piece.release();
+            } else {
+                body.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded LRU cache of whole pieces in pooled direct buffers, for pieces many neighbors ask for at once (a young
+// swarm pulls the same few pieces from the seed). A cached piece is read from disk once and its buffer is shared,
+// read-only, by every upload of it; an evicted piece's buffer goes back to the pool once the last upload is done.
+public class PieceCache {
+    private final PieceStore store;
+    private final int pieceSize;
+    private final int maxBuffers;
+
+    // Access-ordered, so iteration starts at the least recently used piece
+    private final LinkedHashMap<Integer, CachedPiece> pieces = new LinkedHashMap<>(16, 0.75f, true);
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private int allocatedBuffers = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong bypassed = new AtomicLong();
+
+    public PieceCache(PieceStore store, int pieceSize, long capacityBytes) {
+        this.store = store;
+        this.pieceSize = pieceSize;
+        this.maxBuffers = (int) Math.min(Integer.MAX_VALUE, capacityBytes / pieceSize);
+    }
+
+    public boolean isEnabled() {
+        return maxBuffers > 0;
+    }
+
+    // The piece, retained for the caller (release it when the upload is done), or null if the cache is disabled,
+    // full of pieces still being uploaded, or the read failed; the caller then reads the file directly
+    public CachedPiece acquire(int pieceIndex) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        CachedPiece piece;
+        synchronized (this) {
+            piece = pieces.get(pieceIndex);
+            if (piece != null) {
+                hits.incrementAndGet();
+            } else {
+                ByteBuffer buffer = takeBuffer();
+                if (buffer == null) {
+                    bypassed.incrementAndGet();
+                    return null;
+                }
+                misses.incrementAndGet();
+                piece = new CachedPiece(pieceIndex, buffer);
+                pieces.put(pieceIndex, piece);
+            }
+            piece.retain();
+        }
+
+        // Concurrent requests for a piece that is still loading wait here for the single disk read
+        if (!piece.load()) {
+            synchronized (this) {
+                pieces.remove(pieceIndex, piece);
+                piece.evicted = true;
+            }
+            release(piece);
+            return null;
+        }
+        return piece;
+    }
+
+    // For the I/O loops: the piece retained if it is already in memory, otherwise null (no disk read here)
+    public CachedPiece acquireIfCached(int pieceIndex) {
+        if (!isEnabled()) {
+            return null;
+        }
+        synchronized (this) {
+            CachedPiece piece = pieces.get(pieceIndex);
+            if (piece == null || !piece.loaded) {
+                return null;
+            }
+            hits.incrementAndGet();
+            piece.retain();
+            return piece;
+        }
+    }
+
+    public synchronized boolean isCached(int pieceIndex) {
+        return pieces.containsKey(pieceIndex);
+    }
+
+    public void release(CachedPiece piece) {
+        if (piece.refCount.decrementAndGet() == 0) {
+            synchronized (this) {
+                if (piece.evicted && piece.refCount.get() == 0 && !piece.recycled) {
+                    piece.recycled = true;
+                    freeBuffers.push(piece.buffer);
+                }
+            }
+        }
+    }
+
+    // Called with the lock held: a pooled buffer, a new one while under capacity, or one freed by evicting the
+    // least recently used piece nobody is uploading
+    private ByteBuffer takeBuffer() {
+        if (!freeBuffers.isEmpty()) {
+            return freeBuffers.pop();
+        }
+        if (allocatedBuffers < maxBuffers) {
+            allocatedBuffers++;
+            return ByteBuffer.allocateDirect(pieceSize);
+        }
+        Iterator<CachedPiece> leastRecent = pieces.values().iterator();
+        while (leastRecent.hasNext()) {
+            CachedPiece candidate = leastRecent.next();
+            if (candidate.refCount.get() == 0) {
+                leastRecent.remove();
+                candidate.evicted = true;
+                candidate.recycled = true;
+                evictions.incrementAndGet();
+                return candidate.buffer;
+            }
+        }
+        return null;
+    }
+
+    public String getStats() {
+        long lookups = hits.get() + misses.get();
+        return String.format("piece cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d bypassed, %d of %d buffers allocated",
+                hits.get(), misses.get(), lookups > 0 ? 100.0 * hits.get() / lookups : 0.0, evictions.get(), bypassed.get(),
+                allocatedBuffers, maxBuffers);
+    }
+
+    public class CachedPiece {
+        private final int pieceIndex;
+        private final ByteBuffer buffer;
+        private final AtomicInteger refCount = new AtomicInteger();
+        private volatile boolean loaded = false;
+        private boolean failed = false;
+        private boolean evicted = false;   // Guarded by the cache lock
+        private boolean recycled = false;  // Guarded by the cache lock
+        private ByteBuffer contents;
+
+        private CachedPiece(int pieceIndex, ByteBuffer buffer) {
+            this.pieceIndex = pieceIndex;
+            this.buffer = buffer;
+        }
+
+        private void retain() {
+            refCount.incrementAndGet();
+        }
+
+        private synchronized boolean load() {
+            if (!loaded && !failed) {
+                try {
+                    buffer.clear().limit(store.getPieceLength(pieceIndex));
+                    store.read(store.getPieceOffset(pieceIndex), buffer);
+                    contents = buffer.asReadOnlyBuffer();
+                    loaded = true;
+                } catch (IOException e) {
+                    System.err.println("Error caching piece " + pieceIndex + ": " + e.getMessage());
+                    failed = true;
+                }
+            }
+            return loaded;
+        }
+
+        public int getPieceIndex() {
+            return pieceIndex;
+        }
+
+        // A read-only view of part of the piece with its own position, safe to hand to one upload
+        public synchronized ByteBuffer slice(int begin, int length) {
+            ByteBuffer view = contents.duplicate();
+            view.position(begin).limit(begin + length);
+            return view.slice();
+        }
+
+        public void release() {
+            PieceCache.this.release(this);
+        }
+    }
+}
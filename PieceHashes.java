@@ -0,0 +1,109 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.stream.IntStream;
+
+// SHA-1 of every piece, stored in a metadata file next to Common.cfg:
+//   <FileSize> <PieceSize>
+//   <hex SHA-1 of piece 0>
+//   <hex SHA-1 of piece 1>
+//   ...
+public class PieceHashes {
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    });
+    private static final ThreadLocal<ByteBuffer> PIECE_BUFFERS = new ThreadLocal<>();
+
+    private final long fileSize;
+    private final int pieceSize;
+    private final byte[][] hashes;
+
+    private PieceHashes(long fileSize, int pieceSize, byte[][] hashes) {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.hashes = hashes;
+    }
+
+    // Hash every piece of a complete file, in parallel
+    public static PieceHashes compute(PieceStore store, long fileSize, int pieceSize) throws IOException {
+        byte[][] hashes = new byte[store.getTotalPieces()][];
+        try {
+            IntStream.range(0, hashes.length).parallel().forEach(i -> {
+                try {
+                    hashes[i] = hashPiece(store, i);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return new PieceHashes(fileSize, pieceSize, hashes);
+    }
+
+    // SHA-1 of one piece as it is on disk. Each thread reuses its own digest and read buffer.
+    public static byte[] hashPiece(PieceStore store, int pieceIndex) throws IOException {
+        int length = store.getPieceLength(pieceIndex);
+        ByteBuffer buffer = PIECE_BUFFERS.get();
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(length);
+            PIECE_BUFFERS.set(buffer);
+        }
+        buffer.clear().limit(length);
+        store.read(store.getPieceOffset(pieceIndex), buffer);
+
+        MessageDigest digest = DIGESTS.get();
+        digest.update(buffer);
+        return digest.digest();
+    }
+
+    public static PieceHashes read(File hashFile) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(hashFile))) {
+            String[] header = reader.readLine().trim().split("\\s+");
+            long fileSize = Long.parseLong(header[0]);
+            int pieceSize = Integer.parseInt(header[1]);
+            int totalPieces = (int) ((fileSize + pieceSize - 1) / pieceSize);
+
+            byte[][] hashes = new byte[totalPieces][];
+            for (int i = 0; i < totalPieces; i++) {
+                String line = reader.readLine();
+                if (line == null) {
+                    throw new IOException(hashFile.getPath() + " has " + i + " piece hashes, expected " + totalPieces);
+                }
+                hashes[i] = HexFormat.of().parseHex(line.trim());
+            }
+            return new PieceHashes(fileSize, pieceSize, hashes);
+        } catch (NullPointerException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed piece hash file " + hashFile.getPath(), e);
+        }
+    }
+
+    // Written to a temporary file first so peers sharing the directory never read a half-written file
+    public void write(File hashFile) throws IOException {
+        File tempFile = new File(hashFile.getPath() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(tempFile)))) {
+            writer.println(fileSize + " " + pieceSize);
+            for (byte[] hash : hashes) {
+                writer.println(HexFormat.of().formatHex(hash));
+            }
+        }
+        Files.move(tempFile.toPath(), hashFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public boolean matchesLayout(long fileSize, int pieceSize) {
+        return this.fileSize == fileSize && this.pieceSize == pieceSize;
+    }
+
+    public boolean matches(int pieceIndex, byte[] hash) {
+        return Arrays.equals(hashes[pieceIndex], hash);
+    }
+}
@@ -1,49 +1,220 @@
 import java.io.*;
-import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PieceManager {
+    public enum BlockResult { DUPLICATE, QUEUED }
+
+    // Endgame starts when at most 1% of the pieces (and at least 2) are missing
+    private static final double ENDGAME_FRACTION = 0.01;
+    private static final int MIN_ENDGAME_PIECES = 2;
+
     private final BitfieldManager bitfieldManager;
     private final ConnectionManager connectionManager;
-    private final ChokingManager chokingManager;
+    private final FileManager fileManager;
+    private final int blockSize;
+
+    // Pieces being assembled from blocks; a piece stays here until its last block is written
+    private final Map<Integer, PartialPiece> activePieces = new ConcurrentHashMap<>();
+    private final RarestFirstPicker picker;
+    private final int endgamePieces;
 
-    public PieceManager(BitfieldManager bitfieldManager, ConnectionManager connectionManager, ChokingManager chokingManager ) {
+    // What endgame duplicate requests cost us
+    private final AtomicLong duplicateRequests = new AtomicLong();
+    private final AtomicLong cancelsSent = new AtomicLong();
+    private final AtomicLong duplicateBlocks = new AtomicLong();
+    private final AtomicLong duplicateBytes = new AtomicLong();
+
+    public PieceManager(BitfieldManager bitfieldManager, ConnectionManager connectionManager, FileManager fileManager, int blockSize) {
         this.bitfieldManager = bitfieldManager;
         this.connectionManager = connectionManager;
-        this.chokingManager = chokingManager;
+        this.fileManager = fileManager;
+        this.blockSize = blockSize;
+        this.picker = new RarestFirstPicker(bitfieldManager.getTotalPieces());
+        this.endgamePieces = Math.max(MIN_ENDGAME_PIECES, (int) Math.ceil(bitfieldManager.getTotalPieces() * ENDGAME_FRACTION));
+        for (int i = 0; i < bitfieldManager.getTotalPieces(); i++) {
+            if (bitfieldManager.hasPiece(i)) {
+                picker.markHave(i);
+            }
+        }
     }
 
-    public int getNextPieceToRequest() {
-        for (int i = 0; i < bitfieldManager.getTotalPieces(); i++) {
-            if (!bitfieldManager.hasPiece(i)) {
-                return i;
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    // Keep swarm availability in step with what each neighbor announces (BITFIELD, HAVE) or takes away (disconnect)
+    public void onPeerBitfieldChanged(BitfieldManager previousBitfield, BitfieldManager currentBitfield) {
+        picker.updateBitfield(previousBitfield, currentBitfield);
+    }
+
+    public void onPeerHave(int pieceIndex) {
+        picker.increment(pieceIndex);
+    }
+
+    public void onPeerDisconnected(BitfieldManager peerBitfield) {
+        if (peerBitfield != null) {
+            picker.removeBitfield(peerBitfield);
+        }
+    }
+
+    // Pick the rarest missing piece that the peer has and that isn't being assembled already (active pieces are
+    // taken out of the picker)
+    public synchronized int getNextPieceToRequest(BitfieldManager peerBitfield) {
+        if (peerBitfield == null) {
+            return -1;
+        }
+        return picker.pick(peerBitfield); // -1 when nothing is left
+    }
+
+    // Next block to ask this peer for. Each piece is owned by one peer so unchoked peers download different pieces
+    // in parallel: first the peer's own pieces, then pieces left behind by a peer that choked us or stalled, then
+    // the rarest new piece. Returns null when the peer has nothing we still need.
+    public synchronized Block getNextBlockToRequest(int peerID, BitfieldManager peerBitfield) {
+        if (peerBitfield == null) {
+            return null;
+        }
+        for (PartialPiece partial : activePieces.values()) {
+            if (partial.getOwner() == peerID) {
+                Block block = partial.assignBlock(peerID);
+                if (block != null) {
+                    return block;
+                }
             }
         }
-        return -1; // No pieces left to request
+        for (PartialPiece partial : activePieces.values()) {
+            if (partial.isOrphaned() && peerBitfield.hasPiece(partial.getPieceIndex())) {
+                Block block = partial.assignBlock(peerID);
+                if (block != null) {
+                    partial.setOwner(peerID);
+                    return block;
+                }
+            }
+        }
+
+        int pieceIndex = getNextPieceToRequest(peerBitfield);
+        if (pieceIndex == -1) {
+            return isEndgame() ? getEndgameBlock(peerID, peerBitfield) : null;
+        }
+        PartialPiece partial = new PartialPiece(pieceIndex, fileManager.getPieceStore().getPieceLength(pieceIndex), blockSize);
+        partial.setOwner(peerID);
+        activePieces.put(pieceIndex, partial);
+        picker.markActive(pieceIndex);
+        return partial.assignBlock(peerID);
     }
 
+    // The last few pieces are held up by whichever peer is slowest, so they are requested from everyone who has them
+    public boolean isEndgame() {
+        return bitfieldManager.getTotalPieces() - bitfieldManager.getPieceCount() <= endgamePieces;
+    }
 
-    public void handleFullFileResponse(int peerID, byte[] fileData) {
-        try {
-            long startTime = System.nanoTime();
+    // Nothing new is left for this peer: help with blocks other peers still owe us, unrequested ones first
+    private Block getEndgameBlock(int peerID, BitfieldManager peerBitfield) {
+        for (PartialPiece partial : activePieces.values()) {
+            if (peerBitfield.hasPiece(partial.getPieceIndex())) {
+                Block block = partial.assignBlock(peerID);
+                if (block != null) {
+                    return block;
+                }
+            }
+        }
+        for (PartialPiece partial : activePieces.values()) {
+            if (peerBitfield.hasPiece(partial.getPieceIndex())) {
+                Block block = partial.assignDuplicateBlock(peerID);
+                if (block != null) {
+                    duplicateRequests.incrementAndGet();
+                    return block;
+                }
+            }
+        }
+        return null;
+    }
 
-            // Mark all pieces as received in the bitfield since we got the entire file
-            bitfieldManager.setAllPieces();
+    // Number of connected neighbors that have the piece
+    public int getAvailability(int pieceIndex) {
+        return picker.getAvailability(pieceIndex);
+    }
 
-            // Write the full file to disk
-            FileManager.writeFullFile(peerID, fileData);
+    // A peer choked us or stalled, so whatever we asked it for (and the pieces it owned) can go to someone else
+    public synchronized void releaseRequests(int peerID) {
+        for (PartialPiece partial : activePieces.values()) {
+            partial.release(peerID);
+        }
+    }
 
-            long endTime = System.nanoTime();
+    // Queue a received block to be written in place. Blocks for pieces we already have, or blocks we already got,
+    // are dropped.
+    public BlockResult handleBlock(int peerID, int pieceIndex, int begin, ByteBuffer data) {
+        int length = data.remaining();
+        List<Integer> cancelTo;
+        synchronized (this) {
+            PartialPiece partial = activePieces.get(pieceIndex);
+            if (partial == null || !partial.markReceived(begin, length, peerID)) {
+                duplicateBlocks.incrementAndGet();
+                duplicateBytes.addAndGet(length);
+                return BlockResult.DUPLICATE;
+            }
+            cancelTo = partial.takeOtherRequesters(begin, peerID);
+        }
 
-            // Calculate download rate (bytes per millisecond)
-            double downloadRate = fileData.length / ((endTime - startTime) / 1_000_000.0);
-            chokingManager.updateDownloadRate(peerID, downloadRate);
+        // Endgame: the first copy won, the other peers don't need to send theirs
+        for (int otherPeer : cancelTo) {
+            if (connectionManager.sendCancel(otherPeer, new Block(pieceIndex, begin, length))) {
+                cancelsSent.incrementAndGet();
+            }
+        }
+
+        // Handed to the write-back queue; the I/O loop goes straight back to the socket
+        PieceStore store = fileManager.getPieceStore();
+        fileManager.getWriteBack().submit(store.getPieceOffset(pieceIndex) + begin, data,
+                written -> onBlockWritten(peerID, pieceIndex, begin, written));
+        return BlockResult.QUEUED;
+    }
 
-            System.out.println("Full file successfully received and handled for Peer " + peerID);
-        } catch (Exception e) {
-            System.err.println("Error handling full file from Peer " + peerID + ": " + e.getMessage());
+    // Runs on the writer thread. Verifiable only once every block is on disk, not just received (other blocks may
+    // still be queued). The piece stays active (nothing left to request) until its hash is checked.
+    private void onBlockWritten(int peerID, int pieceIndex, int begin, boolean written) {
+        boolean pieceWritten;
+        synchronized (this) {
+            PartialPiece partial = activePieces.get(pieceIndex);
+            if (partial == null) {
+                return;
+            }
+            if (!written) {
+                partial.unmarkReceived(begin); // Fetch the block again
+                pieceWritten = false;
+            } else {
+                pieceWritten = partial.markWritten();
+            }
+        }
+        if (!written) {
+            connectionManager.onBlockWriteFailed(pieceIndex, begin, peerID);
+        } else if (pieceWritten) {
+            fileManager.getWriteBack().onPieceWritten();
+            connectionManager.onPieceWritten(pieceIndex, peerID);
         }
     }
 
+    // The piece's hash matched. The caller marks the bitfield so interest counts stay consistent (see InterestTracker).
+    public synchronized void completePiece(int pieceIndex) {
+        activePieces.remove(pieceIndex);
+        picker.markHave(pieceIndex);
+    }
 
+    // The piece's hash did not match: forget it so it is picked and downloaded again, and return who sent it
+    public synchronized Set<Integer> discardPiece(int pieceIndex) {
+        PartialPiece partial = activePieces.remove(pieceIndex);
+        picker.release(pieceIndex);
+        return partial != null ? partial.getContributors() : Collections.emptySet();
+    }
+
+    // Duplicate traffic caused by endgame, logged once the download completes
+    public String getDuplicateReport() {
+        long totalBytes = fileManager.getPieceStore().getFile().length();
+        return String.format("sent %d endgame duplicate requests and %d cancels; %d blocks (%d bytes, %.2f%% of the file) arrived twice",
+                duplicateRequests.get(), cancelsSent.get(), duplicateBlocks.get(), duplicateBytes.get(),
+                totalBytes > 0 ? 100.0 * duplicateBytes.get() / totalBytes : 0.0);
+    }
 }
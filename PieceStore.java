@@ -0,0 +1,88 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// All pieces live in one preallocated (sparse) file and are read and written in place at index * pieceSize.
+// Positional FileChannel I/O is thread-safe, so readers and writers never share a file pointer.
+public class PieceStore implements Closeable {
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int pieceSize;
+    private final int totalPieces;
+
+    public PieceStore(File file, long fileSize, int pieceSize) throws IOException {
+        this.file = file;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.totalPieces = Math.toIntExact((fileSize + pieceSize - 1) / pieceSize);
+
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        if (randomAccessFile.length() != fileSize) {
+            // Extending with setLength leaves a hole, no blocks are allocated until pieces are written
+            randomAccessFile.setLength(fileSize);
+        }
+        this.channel = randomAccessFile.getChannel();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getTotalPieces() {
+        return totalPieces;
+    }
+
+    public long getPieceOffset(int pieceIndex) {
+        return (long) pieceIndex * pieceSize;
+    }
+
+    // The last piece is usually shorter than pieceSize
+    public int getPieceLength(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= totalPieces) {
+            throw new IllegalArgumentException("Invalid piece index: " + pieceIndex);
+        }
+        return (int) Math.min(pieceSize, fileSize - getPieceOffset(pieceIndex));
+    }
+
+    // Fill the buffer from the given file offset
+    public void read(long offset, ByteBuffer buffer) throws IOException {
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead == -1) {
+                throw new EOFException("Unexpected end of file at offset " + position);
+            }
+            position += bytesRead;
+        }
+        buffer.flip();
+    }
+
+    // Gathering write of adjacent buffers starting at offset. Goes through the channel position, which nothing else
+    // uses (all other I/O is positional), so only the lock on this method is needed.
+    public synchronized void write(long offset, ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        channel.position(offset);
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    // A zero-copy view of part of a piece (one block)
+    public FileRegion blockRegion(int pieceIndex, int begin, int length) {
+        return new FileRegion(channel, getPieceOffset(pieceIndex) + begin, length, false);
+    }
+
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+// Checks completed pieces against their SHA-1 on a small pool of hashing threads, so a piece is never announced
+// (bitfield, HAVE) before it is known to be good and the I/O loops never spend time hashing.
+public class PieceVerifier {
+    private static final int HASH_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int BACKLOG_THRESHOLD = QUEUE_CAPACITY / 2; // Stop starting new pieces beyond this
+
+    private final int peerID;
+    private final FileManager fileManager;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger peakPending = new AtomicInteger();
+    private final AtomicLong piecesVerified = new AtomicLong();
+    private final AtomicLong piecesCorrupt = new AtomicLong();
+    private final AtomicLong bytesHashed = new AtomicLong();
+    private final AtomicLong hashNanos = new AtomicLong();
+
+    public PieceVerifier(int peerID, FileManager fileManager) {
+        this.peerID = peerID;
+        this.fileManager = fileManager;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(HASH_THREADS, HASH_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+                    Thread thread = new Thread(runnable, "peer-" + peerID + "-hash-" + threadCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }, (task, pool) -> {
+                    // New pieces are held back well before the queue fills (see isBacklogged), so this is a last
+                    // resort for pieces that were already in flight
+                    System.err.println("Peer " + peerID + ": piece verification queue is full, hashing on the calling thread");
+                    task.run();
+                });
+    }
+
+    // Hash the piece in the background; the callback gets true if it matches the metadata file
+    public void verify(int pieceIndex, Consumer<Boolean> onVerified) {
+        peakPending.accumulateAndGet(pending.incrementAndGet(), Math::max);
+        executor.execute(() -> {
+            boolean valid;
+            try {
+                valid = check(pieceIndex);
+            } finally {
+                pending.decrementAndGet();
+            }
+            onVerified.accept(valid);
+        });
+    }
+
+    // Fails closed: without the metadata file nothing counts as verified
+    public boolean check(int pieceIndex) {
+        PieceHashes pieceHashes = fileManager.getPieceHashes();
+        if (pieceHashes == null) {
+            System.err.println("ERROR: Peer " + peerID + " cannot verify piece " + pieceIndex + " without piece hashes, rejecting it");
+            return false;
+        }
+        try {
+            long startTime = System.nanoTime();
+            byte[] hash = PieceHashes.hashPiece(fileManager.getPieceStore(), pieceIndex);
+            hashNanos.addAndGet(System.nanoTime() - startTime);
+            bytesHashed.addAndGet(fileManager.getPieceStore().getPieceLength(pieceIndex));
+
+            if (pieceHashes.matches(pieceIndex, hash)) {
+                piecesVerified.incrementAndGet();
+                return true;
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading piece " + pieceIndex + " for verification: " + e.getMessage());
+        }
+        piecesCorrupt.incrementAndGet();
+        return false;
+    }
+
+    // Startup check of pieces restored from the journal, hashed in parallel on every core. Returns the good ones.
+    public List<Integer> verifyAll(List<Integer> pieceIndexes) {
+        return pieceIndexes.parallelStream().filter(this::check).collect(Collectors.toList());
+    }
+
+    // Downloads wait for the metadata file, since no piece could be accepted without it
+    public boolean hasPieceHashes() {
+        return fileManager.getPieceHashes() != null;
+    }
+
+    // Too many pieces waiting to be hashed: the download should not start new ones until the queue drains
+    public boolean isBacklogged() {
+        return pending.get() >= BACKLOG_THRESHOLD;
+    }
+
+    // Hashing throughput per thread (MB/s of hashing time), counts and the deepest the queue got
+    public String getStats() {
+        double seconds = hashNanos.get() / 1_000_000_000.0;
+        double megabytes = bytesHashed.get() / (1024.0 * 1024.0);
+        return String.format("verified %d pieces (%.1f MB) at %.1f MB/s per hashing thread, %d corrupt, peak queue %d",
+                piecesVerified.get(), megabytes, seconds > 0 ? megabytes / seconds : 0.0, piecesCorrupt.get(), peakPending.get());
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,177 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+// Rarest-first piece selection. Every missing piece that is not being downloaded sits in the bucket for its swarm
+// availability count; HAVE/BITFIELD updates move a piece to the neighboring bucket in O(1) (swap-with-last removal).
+// The same pieces are kept in a bitset, so a pick intersects it with the peer's bitfield a word at a time and stops
+// at the first candidate in the rarest non-empty bucket.
+public class RarestFirstPicker {
+    private static final int HAVE = -1;   // bucketPosition of a piece we have
+    private static final int ACTIVE = -2; // bucketPosition of a piece being downloaded
+
+    private final int totalPieces;
+    private final int[] availability;     // Number of connected peers that have each piece
+    private final int[] bucketPosition;   // Position of a pickable piece inside its bucket, or HAVE / ACTIVE
+    private final long[] pickable;        // Bit per piece that sits in a bucket
+    private int[][] buckets = new int[4][];
+    private int[] bucketSizes = new int[4];
+
+    public RarestFirstPicker(int totalPieces) {
+        this.totalPieces = totalPieces;
+        this.availability = new int[totalPieces];
+        this.bucketPosition = new int[totalPieces];
+        this.pickable = new long[(totalPieces + 63) >>> 6];
+
+        // Everything starts missing with availability 0
+        buckets[0] = new int[Math.max(totalPieces, 1)];
+        for (int i = 0; i < totalPieces; i++) {
+            buckets[0][i] = i;
+            bucketPosition[i] = i;
+            pickable[i >>> 6] |= 1L << i;
+        }
+        bucketSizes[0] = totalPieces;
+    }
+
+    public synchronized void increment(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= totalPieces) {
+            return;
+        }
+        int count = availability[pieceIndex]++;
+        if (bucketPosition[pieceIndex] >= 0) {
+            removeFromBucket(pieceIndex, count);
+            addToBucket(pieceIndex, count + 1);
+        }
+    }
+
+    public synchronized void decrement(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= totalPieces || availability[pieceIndex] == 0) {
+            return;
+        }
+        int count = availability[pieceIndex]--;
+        if (bucketPosition[pieceIndex] >= 0) {
+            removeFromBucket(pieceIndex, count);
+            addToBucket(pieceIndex, count - 1);
+        }
+    }
+
+    // A neighbor disconnected: every piece it had is one copy rarer
+    public synchronized void removeBitfield(BitfieldManager bitfield) {
+        updateBitfield(bitfield, null);
+    }
+
+    // Apply only the bits that changed between the previous and the new bitfield of a peer, a word at a time.
+    // A null bitfield stands for "no pieces".
+    public synchronized void updateBitfield(BitfieldManager previous, BitfieldManager current) {
+        int wordCount = (totalPieces + 63) >>> 6;
+        for (int wordIndex = 0; wordIndex < wordCount; wordIndex++) {
+            long before = previous != null ? previous.getWord(wordIndex) : 0L;
+            long after = current != null ? current.getWord(wordIndex) : 0L;
+            long changed = before ^ after;
+            while (changed != 0) {
+                int bit = Long.numberOfTrailingZeros(changed);
+                int pieceIndex = (wordIndex << 6) + bit;
+                if ((after & (1L << bit)) != 0) {
+                    increment(pieceIndex);
+                } else {
+                    decrement(pieceIndex);
+                }
+                changed &= changed - 1;
+            }
+        }
+    }
+
+    // We have the piece now, it is never picked again
+    public synchronized void markHave(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= totalPieces || bucketPosition[pieceIndex] == HAVE) {
+            return;
+        }
+        if (bucketPosition[pieceIndex] >= 0) {
+            removeFromBucket(pieceIndex, availability[pieceIndex]);
+        }
+        bucketPosition[pieceIndex] = HAVE;
+    }
+
+    // The piece is being downloaded; it is not picked again unless it is released
+    public synchronized void markActive(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < totalPieces && bucketPosition[pieceIndex] >= 0) {
+            removeFromBucket(pieceIndex, availability[pieceIndex]);
+            bucketPosition[pieceIndex] = ACTIVE;
+        }
+    }
+
+    // The download of the piece was abandoned, so it can be picked again
+    public synchronized void release(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < totalPieces && bucketPosition[pieceIndex] == ACTIVE) {
+            addToBucket(pieceIndex, availability[pieceIndex]);
+        }
+    }
+
+    public synchronized int getAvailability(int pieceIndex) {
+        return availability[pieceIndex];
+    }
+
+    // Rarest pickable piece the peer has, starting from a random word so ties are broken at random.
+    // Returns -1 when no piece qualifies.
+    public synchronized int pick(BitfieldManager peerBitfield) {
+        // A piece the peer has is at least in bucket 1; a candidate in the rarest non-empty bucket can't be beaten
+        int rarest = 1;
+        while (rarest < bucketSizes.length && bucketSizes[rarest] == 0) {
+            rarest++;
+        }
+        if (rarest == bucketSizes.length) {
+            return -1;
+        }
+
+        int best = -1;
+        int bestCount = Integer.MAX_VALUE;
+        int start = ThreadLocalRandom.current().nextInt(pickable.length);
+        for (int i = 0; i < pickable.length; i++) {
+            int wordIndex = (start + i) % pickable.length;
+            long candidates = pickable[wordIndex] & peerBitfield.getWord(wordIndex);
+            while (candidates != 0) {
+                int pieceIndex = (wordIndex << 6) + Long.numberOfTrailingZeros(candidates);
+                int count = availability[pieceIndex];
+                if (count == rarest) {
+                    return pieceIndex;
+                }
+                if (count < bestCount) {
+                    best = pieceIndex;
+                    bestCount = count;
+                }
+                candidates &= candidates - 1;
+            }
+        }
+        return best;
+    }
+
+    private void addToBucket(int pieceIndex, int count) {
+        if (count >= buckets.length) {
+            int newLength = Math.max(count + 1, buckets.length * 2);
+            int[][] grownBuckets = new int[newLength][];
+            System.arraycopy(buckets, 0, grownBuckets, 0, buckets.length);
+            buckets = grownBuckets;
+            int[] grownSizes = new int[newLength];
+            System.arraycopy(bucketSizes, 0, grownSizes, 0, bucketSizes.length);
+            bucketSizes = grownSizes;
+        }
+        int[] bucket = buckets[count];
+        if (bucket == null) {
+            bucket = buckets[count] = new int[16];
+        } else if (bucketSizes[count] == bucket.length) {
+            int[] grown = new int[Math.min(bucket.length * 2, Math.max(totalPieces, 1))];
+            System.arraycopy(bucket, 0, grown, 0, bucket.length);
+            bucket = buckets[count] = grown;
+        }
+        bucket[bucketSizes[count]] = pieceIndex;
+        bucketPosition[pieceIndex] = bucketSizes[count]++;
+        pickable[pieceIndex >>> 6] |= 1L << pieceIndex;
+    }
+
+    private void removeFromBucket(int pieceIndex, int count) {
+        int[] bucket = buckets[count];
+        int position = bucketPosition[pieceIndex];
+        int last = bucket[--bucketSizes[count]];
+        bucket[position] = last;
+        bucketPosition[last] = position;
+        pickable[pieceIndex >>> 6] &= ~(1L << pieceIndex);
+    }
+}
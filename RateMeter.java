@@ -0,0 +1,62 @@
+import java.util.Arrays;
+
+// Bytes moved over one direction of a connection, kept in a ring of fixed time buckets so the rate over any recent
+// window (up to the ring length) can be read without keeping per-event history. Counted on the I/O loop for every
+// socket read or write; read by the choker on its own thread.
+public class RateMeter {
+    // The window is split into this many buckets (plus one partial), so reading a rate costs the same at any window
+    private static final int BUCKETS_PER_WINDOW = 8;
+
+    private final long bucketNanos;
+    private final long[] bucketBytes;
+    private final long[] bucketEpochs; // Which bucket period each slot currently holds
+    private final long createdNanos = System.nanoTime();
+    private long totalBytes = 0;
+
+    // windowMillis: the longest window getRate will be asked for
+    public RateMeter(long windowMillis) {
+        this.bucketNanos = Math.max(1, windowMillis * 1_000_000L / BUCKETS_PER_WINDOW);
+        this.bucketBytes = new long[BUCKETS_PER_WINDOW + 1]; // One partial bucket
+        this.bucketEpochs = new long[BUCKETS_PER_WINDOW + 1];
+        Arrays.fill(bucketEpochs, -1);
+    }
+
+    public synchronized void add(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        long epoch = (System.nanoTime() - createdNanos) / bucketNanos;
+        int slot = (int) (epoch % bucketBytes.length);
+        if (bucketEpochs[slot] != epoch) {
+            bucketEpochs[slot] = epoch;
+            bucketBytes[slot] = 0;
+        }
+        bucketBytes[slot] += bytes;
+        totalBytes += bytes;
+    }
+
+    // Bytes per second over the last windowMillis (or since the meter was created, if that is shorter)
+    public synchronized double getRate(long windowMillis) {
+        long elapsed = System.nanoTime() - createdNanos;
+        long now = elapsed / bucketNanos;
+        long windowBuckets = Math.min(bucketBytes.length - 1, Math.max(1, windowMillis * 1_000_000L / bucketNanos));
+        long bytes = 0;
+        for (int slot = 0; slot < bucketBytes.length; slot++) {
+            if (bucketEpochs[slot] >= 0 && now - bucketEpochs[slot] <= windowBuckets) {
+                bytes += bucketBytes[slot];
+            }
+        }
+        // The window is the full buckets plus however much of the current one has passed
+        long windowNanos = Math.min(elapsed, windowBuckets * bucketNanos + elapsed % bucketNanos);
+        return windowNanos > 0 ? bytes * 1_000_000_000.0 / windowNanos : 0.0;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    // Forget the recent history (the total is kept)
+    public synchronized void reset() {
+        Arrays.fill(bucketEpochs, -1);
+    }
+}
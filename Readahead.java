@@ -0,0 +1,163 @@
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Keeps disk reads off the I/O loops. A REQUEST for a piece that is not cached is read on a background thread and
+// sent once it is in memory, and request patterns are used to load pieces before they are asked for:
+//  - a neighbor walking the file in order gets the next few pieces read ahead;
+//  - otherwise neighbors pick rarest-first, so the pieces we hold that fewest neighbors have (and this neighbor
+//    lacks) are loaded next.
+// Prefetching is best effort: it is skipped when too many reads are already queued, and it runs on its own thread
+// so a request that misses the cache never waits behind queued prefetches.
+public class Readahead {
+    private static final int READ_THREADS = 2;
+    private static final int SEQUENTIAL_WINDOW = 4;
+    private static final int RAREST_WINDOW = 4;
+    private static final int MAX_PENDING_PREFETCHES = 64;
+    private static final long RAREST_SCAN_INTERVAL_NANOS = 250_000_000L; // Per neighbor
+
+    private final PieceCache pieceCache;
+    private final BitfieldManager bitfieldManager;
+    private final InterestTracker interestTracker;
+    private final PieceManager pieceManager;
+    private final ExecutorService executor;   // Reads a neighbor is waiting for
+    private final ExecutorService prefetcher; // Rarest scans and prefetches
+
+    private final Map<Integer, Integer> lastRequestedPiece = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> lastRarestScan = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingPrefetches = new AtomicInteger();
+    private final AtomicLong sequentialPrefetches = new AtomicLong();
+    private final AtomicLong rarestPrefetches = new AtomicLong();
+    private final AtomicLong loadsOnDemand = new AtomicLong();
+
+    public Readahead(int peerID, PieceCache pieceCache, BitfieldManager bitfieldManager, InterestTracker interestTracker, PieceManager pieceManager) {
+        this.pieceCache = pieceCache;
+        this.bitfieldManager = bitfieldManager;
+        this.interestTracker = interestTracker;
+        this.pieceManager = pieceManager;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(READ_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "peer-" + peerID + "-readahead-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "peer-" + peerID + "-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean isEnabled() {
+        return pieceCache.isEnabled();
+    }
+
+    // Read a piece that isn't cached on a background thread; the callback gets it retained, or null if the cache
+    // could not take it. Not dropped when busy: the neighbor is waiting for this data.
+    public void load(int pieceIndex, Consumer<PieceCache.CachedPiece> onLoaded) {
+        loadsOnDemand.incrementAndGet();
+        executor.execute(() -> onLoaded.accept(pieceCache.acquire(pieceIndex)));
+    }
+
+    // Called on the I/O loop for each block a neighbor requests
+    public void onRequest(int remotePeerID, int pieceIndex) {
+        Integer previous = lastRequestedPiece.put(remotePeerID, pieceIndex);
+        if (previous != null && previous == pieceIndex) {
+            return; // Another block of the same piece
+        }
+
+        if (previous != null && pieceIndex == previous + 1) {
+            for (int next = pieceIndex + 1; next <= pieceIndex + SEQUENTIAL_WINDOW && next < bitfieldManager.getTotalPieces(); next++) {
+                if (prefetch(next)) {
+                    sequentialPrefetches.incrementAndGet();
+                }
+            }
+            return;
+        }
+
+        long now = System.nanoTime();
+        Long lastScan = lastRarestScan.get(remotePeerID);
+        if (lastScan == null || now - lastScan > RAREST_SCAN_INTERVAL_NANOS) {
+            lastRarestScan.put(remotePeerID, now);
+            if (pendingPrefetches.get() < MAX_PENDING_PREFETCHES) {
+                prefetcher.execute(() -> prefetchRarest(remotePeerID));
+            }
+        }
+    }
+
+    public void removePeer(int remotePeerID) {
+        lastRequestedPiece.remove(remotePeerID);
+        lastRarestScan.remove(remotePeerID);
+    }
+
+    // The pieces this neighbor will most likely ask for next: the ones we have, it lacks, and fewest neighbors have.
+    // Runs on the prefetch thread; a linear scan of our bitfield keeping the RAREST_WINDOW smallest counts.
+    private void prefetchRarest(int remotePeerID) {
+        BitfieldManager peerBitfield = interestTracker.getPeerBitfield(remotePeerID);
+        if (peerBitfield == null) {
+            return;
+        }
+        int[] rarest = new int[RAREST_WINDOW];
+        int[] rarestCounts = new int[RAREST_WINDOW];
+        int found = 0;
+        for (int i = bitfieldManager.nextSetBitAndNot(peerBitfield, 0); i != -1; i = bitfieldManager.nextSetBitAndNot(peerBitfield, i + 1)) {
+            int count = pieceManager.getAvailability(i);
+            if (found < RAREST_WINDOW) {
+                rarest[found] = i;
+                rarestCounts[found++] = count;
+                continue;
+            }
+            int worst = 0;
+            for (int j = 1; j < RAREST_WINDOW; j++) {
+                if (rarestCounts[j] > rarestCounts[worst]) {
+                    worst = j;
+                }
+            }
+            if (count < rarestCounts[worst]) {
+                rarest[worst] = i;
+                rarestCounts[worst] = count;
+            }
+        }
+        for (int j = 0; j < found; j++) {
+            if (prefetch(rarest[j])) {
+                rarestPrefetches.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean prefetch(int pieceIndex) {
+        if (!bitfieldManager.hasPiece(pieceIndex) || pieceCache.isCached(pieceIndex)
+                || pendingPrefetches.get() >= MAX_PENDING_PREFETCHES) {
+            return false;
+        }
+        pendingPrefetches.incrementAndGet();
+        try {
+            prefetcher.execute(() -> {
+                try {
+                    PieceCache.CachedPiece piece = pieceCache.acquire(pieceIndex);
+                    if (piece != null) {
+                        piece.release(); // Stays cached until evicted
+                    }
+                } finally {
+                    pendingPrefetches.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingPrefetches.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public String getStats() {
+        return String.format("readahead: %d sequential and %d rarest-held prefetches, %d block requests waited for a background read",
+                sequentialPrefetches.get(), rarestPrefetches.get(), loadsOnDemand.get());
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        prefetcher.shutdownNow();
+    }
+}
@@ -0,0 +1,109 @@
+import java.util.*;
+
+// Outstanding REQUESTs to one unchoked peer. Several requests stay in flight so a transfer doesn't pay a full
+// round trip per block; the depth follows the bandwidth-delay product measured on this connection:
+//   depth = ceil(throughput * baseRtt / requestSize) + 1
+// where baseRtt is the smallest request latency seen recently (queueing behind our own requests inflates the rest)
+// and throughput is a moving average of the delivery rate.
+public class RequestPipeline {
+    private static final int MIN_DEPTH = 2;
+    private static final int MAX_DEPTH = 64;
+    private static final double RATE_ALPHA = 0.2;
+    private static final long BASE_RTT_WINDOW_NANOS = 10_000_000_000L; // Forget the minimum after 10s
+
+    private final int peerID;
+    private final int requestSize;
+    private final LinkedHashMap<Block, Long> outstanding = new LinkedHashMap<>(); // Request -> time sent
+
+    private long baseRttNanos = -1;
+    private long baseRttTimestamp;
+    private double bytesPerNano = 0;
+    private long lastDeliveryNanos = -1;
+    private boolean snubbed = false; // Stalled recently: one request at a time until it delivers again
+
+    public RequestPipeline(int peerID, int requestSize) {
+        this.peerID = peerID;
+        this.requestSize = requestSize;
+    }
+
+    public int getPeerID() {
+        return peerID;
+    }
+
+    public synchronized int getTargetDepth() {
+        if (snubbed) {
+            return 1;
+        }
+        if (baseRttNanos <= 0 || bytesPerNano <= 0) {
+            return MIN_DEPTH; // Nothing measured yet
+        }
+        double bandwidthDelayProduct = bytesPerNano * baseRttNanos;
+        int depth = (int) Math.ceil(bandwidthDelayProduct / requestSize) + 1;
+        return Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, depth));
+    }
+
+    public synchronized boolean hasRoom() {
+        return outstanding.size() < getTargetDepth();
+    }
+
+    public synchronized void onRequestSent(Block request) {
+        long now = System.nanoTime();
+        if (outstanding.isEmpty()) {
+            lastDeliveryNanos = now; // Idle time before this request doesn't count against the peer's rate
+        }
+        outstanding.put(request, now);
+    }
+
+    // Returns false if the data was not requested from this peer (late, or already released)
+    public synchronized boolean onResponse(Block request, int bytes) {
+        Long sentAt = outstanding.remove(request);
+        if (sentAt == null) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        long latency = now - sentAt;
+        if (baseRttNanos < 0 || latency < baseRttNanos || now - baseRttTimestamp > BASE_RTT_WINDOW_NANOS) {
+            baseRttNanos = Math.max(latency, 1);
+            baseRttTimestamp = now;
+        }
+
+        if (lastDeliveryNanos > 0) {
+            long interval = Math.max(now - lastDeliveryNanos, 1);
+            double sample = (double) bytes / interval;
+            bytesPerNano = bytesPerNano == 0 ? sample : bytesPerNano + RATE_ALPHA * (sample - bytesPerNano);
+        }
+        lastDeliveryNanos = now;
+        snubbed = false;
+        return true;
+    }
+
+    // We sent a CANCEL, the block will most likely not arrive from this peer
+    public synchronized boolean cancel(Block request) {
+        return outstanding.remove(request) != null;
+    }
+
+    // The peer choked us (or went away): every outstanding request is dropped so it can be re-queued elsewhere
+    public synchronized List<Block> releaseAll() {
+        List<Block> released = new ArrayList<>(outstanding.keySet());
+        outstanding.clear();
+        lastDeliveryNanos = -1;
+        return released;
+    }
+
+    // How long requests have been waiting without any data arriving, 0 when nothing is outstanding
+    public synchronized long getStalledNanos(long now) {
+        if (outstanding.isEmpty() || lastDeliveryNanos < 0) {
+            return 0;
+        }
+        return now - lastDeliveryNanos;
+    }
+
+    public synchronized long getBaseRttNanos() {
+        return Math.max(baseRttNanos, 0);
+    }
+
+    public synchronized void setSnubbed(boolean snubbed) {
+        this.snubbed = snubbed;
+    }
+}
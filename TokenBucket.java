@@ -0,0 +1,89 @@
+// Byte-rate limiter for one direction of traffic. Buckets nest: a per-peer bucket draws from the global one, so a
+// grant needs tokens at every level. The bucket holds at most BURST_NANOS worth of tokens and a grant is capped at
+// what is there, so a limited connection sends in small, evenly spaced pieces instead of bursts. A caller that gets 0
+// waits nanosUntilAvailable() (on a timer, never spinning). An unlimited bucket without a limited parent costs one
+// branch per call.
+public class TokenBucket {
+    private static final long BURST_NANOS = 50_000_000L;
+    private static final long MIN_BURST = 4096;
+
+    private final long bytesPerSecond; // 0 = unlimited
+    private final long capacity;
+    private final TokenBucket parent;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    public TokenBucket(long bytesPerSecond, TokenBucket parent) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.capacity = Math.max(MIN_BURST, this.bytesPerSecond * BURST_NANOS / 1_000_000_000L);
+        this.parent = parent;
+        this.tokens = capacity;
+    }
+
+    // Take up to `wanted` bytes of allowance from this bucket and its parents; 0 if any level is empty
+    public long acquire(long wanted) {
+        if (wanted <= 0) {
+            return 0;
+        }
+        long granted = wanted;
+        if (bytesPerSecond > 0) {
+            synchronized (this) {
+                refill();
+                granted = Math.min(wanted, (long) tokens);
+                tokens -= granted;
+            }
+            if (granted == 0) {
+                return 0;
+            }
+        }
+        if (parent != null) {
+            long fromParent = parent.acquire(granted);
+            if (fromParent < granted) {
+                returnTokens(granted - fromParent);
+            }
+            granted = fromParent;
+        }
+        return granted;
+    }
+
+    // Give back the part of a grant that the socket did not take
+    public void refund(long unused) {
+        if (unused <= 0) {
+            return;
+        }
+        returnTokens(unused);
+        if (parent != null) {
+            parent.refund(unused);
+        }
+    }
+
+    // How long until a useful amount (a quarter of the burst) is available at every level
+    public long nanosUntilAvailable() {
+        long wait = 0;
+        if (bytesPerSecond > 0) {
+            synchronized (this) {
+                refill();
+                double missing = capacity / 4.0 - tokens;
+                if (missing > 0) {
+                    wait = (long) (missing * 1_000_000_000L / bytesPerSecond);
+                }
+            }
+        }
+        return parent != null ? Math.max(wait, parent.nanosUntilAvailable()) : wait;
+    }
+
+    private void returnTokens(long amount) {
+        if (bytesPerSecond > 0) {
+            synchronized (this) {
+                tokens = Math.min(capacity, tokens + amount);
+            }
+        }
+    }
+
+    // Called with the lock held
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * (double) bytesPerSecond / 1_000_000_000L);
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+// Loopback throughput of the two piece upload paths:
+//   buffered  - read the piece into a heap byte[] and write it to the socket (the old readPiece + sendMessage path)
+//   zero-copy - FileChannel.transferTo straight from the page cache (the FileRegion path sendBlock uses for blocks
+//               not served from the piece cache)
+//
+// Usage: java TransferBenchmark [fileSizeMB] [pieceSizeKB] [rounds]
+public class TransferBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int fileSizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int pieceSize = (args.length > 1 ? Integer.parseInt(args[1]) : 256) * 1024;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Path file = Files.createTempFile("transfer-benchmark", ".bin");
+        file.toFile().deleteOnExit();
+        writeRandomFile(file, (long) fileSizeMB * 1024 * 1024);
+
+        System.out.println("File " + fileSizeMB + " MB, piece " + pieceSize / 1024 + " KB, " + rounds + " rounds");
+        // First round of each is a warm-up for the JIT and the page cache
+        for (int round = 0; round <= rounds; round++) {
+            double buffered = run(file, pieceSize, false);
+            double zeroCopy = run(file, pieceSize, true);
+            if (round > 0) {
+                System.out.printf("round %d: buffered %.1f MB/s, zero-copy %.1f MB/s%n", round, buffered, zeroCopy);
+            }
+        }
+        Files.deleteIfExists(file);
+    }
+
+    private static void writeRandomFile(Path file, long size) throws IOException {
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            for (long written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    // Returns MB/s for sending the whole file piece by piece over a loopback connection
+    private static double run(Path file, int pieceSize, boolean zeroCopy) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+            Thread drain = new Thread(() -> {
+                try (SocketChannel receiver = server.accept()) {
+                    ByteBuffer sink = ByteBuffer.allocateDirect(1024 * 1024);
+                    while (receiver.read(sink) != -1) {
+                        sink.clear();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error draining benchmark socket: " + e.getMessage());
+                }
+            });
+            drain.start();
+
+            long fileSize = Files.size(file);
+            long start = System.nanoTime();
+            try (SocketChannel sender = SocketChannel.open(server.getLocalAddress());
+                 FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                for (long offset = 0; offset < fileSize; offset += pieceSize) {
+                    long length = Math.min(pieceSize, fileSize - offset);
+                    if (zeroCopy) {
+                        FileRegion region = new FileRegion(fileChannel, offset, length, false);
+                        while (region.hasRemaining()) {
+                            region.transferTo(sender);
+                        }
+                    } else {
+                        byte[] piece = new byte[(int) length];
+                        try (RandomAccessFile in = new RandomAccessFile(file.toFile(), "r")) {
+                            in.seek(offset);
+                            in.readFully(piece);
+                        }
+                        ByteBuffer buffer = ByteBuffer.wrap(piece);
+                        while (buffer.hasRemaining()) {
+                            sender.write(buffer);
+                        }
+                    }
+                }
+            }
+            drain.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            return fileSize / (1024.0 * 1024.0) / seconds;
+        }
+    }
+}
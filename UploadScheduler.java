@@ -0,0 +1,215 @@
+import java.util.*;
+import java.util.function.BiPredicate;
+
+// Decides which neighbor's REQUEST is served next. Requests wait in a queue per neighbor, and only a bounded number of
+// blocks at a time (maxBlocksInFlight, about half a second of the configured upload rate) are handed to the
+// connections, so when the uplink is the bottleneck the order of hand-out decides each neighbor's share. Hand-out
+// is deficit round-robin: each visit credits a neighbor with QUANTUM bytes times its weight (preferred neighbors
+// count double against the optimistic one) and serves blocks while the credit lasts. A choked neighbor has
+// weight 0: its requests are refused and its queue is dropped.
+public class UploadScheduler {
+    public static final int PREFERRED_WEIGHT = 2;
+    public static final int OPTIMISTIC_WEIGHT = 1;
+
+    private static final int QUANTUM = 16 * 1024;
+    private static final int MAX_QUEUED_REQUESTS = 512; // Per neighbor; more are refused
+
+    private final BiPredicate<Integer, Block> sender; // Hands a block to the connection; false if it is gone
+    private final int maxBlocksInFlight;
+    private final int maxPeerBlocksInFlight;
+    private final Map<Integer, PeerQueue> peers = new HashMap<>();
+    private final ArrayDeque<PeerQueue> active = new ArrayDeque<>(); // Neighbors with queued requests, in DRR order
+    private int blocksInFlight = 0;
+    private boolean dispatching = false;    // A thread is in dispatch(); others leave their work to it
+    private boolean dispatchAgain = false;  // Something changed while it was sending
+
+    private long requestsRefused = 0;
+    private long requestsDropped = 0;
+
+    public UploadScheduler(BiPredicate<Integer, Block> sender, int maxBlocksInFlight, int maxPeerBlocksInFlight) {
+        this.sender = sender;
+        this.maxBlocksInFlight = maxBlocksInFlight;
+        this.maxPeerBlocksInFlight = maxPeerBlocksInFlight;
+    }
+
+    // A connected neighbor starts out choked
+    public synchronized void addPeer(int remotePeerID) {
+        peers.putIfAbsent(remotePeerID, new PeerQueue(remotePeerID));
+    }
+
+    // Called by the choker when it unchokes (weight > 0), re-ranks or chokes (weight 0) a neighbor
+    public void setWeight(int remotePeerID, int weight) {
+        synchronized (this) {
+            PeerQueue queue = peers.get(remotePeerID);
+            if (queue == null) {
+                return; // Already disconnected
+            }
+            queue.weight = weight;
+            if (weight == 0 && !queue.requests.isEmpty()) {
+                requestsDropped += queue.requests.size();
+                queue.requests.clear();
+                queue.deficit = 0;
+                active.remove(queue);
+                queue.active = false;
+            }
+        }
+        dispatch();
+    }
+
+    public synchronized boolean isUnchoked(int remotePeerID) {
+        PeerQueue queue = peers.get(remotePeerID);
+        return queue != null && queue.weight > 0;
+    }
+
+    // A validated REQUEST; false if it was refused (the neighbor is choked or its queue is full)
+    public boolean onRequest(int remotePeerID, Block block) {
+        synchronized (this) {
+            PeerQueue queue = peers.get(remotePeerID);
+            if (queue == null || queue.weight == 0 || queue.requests.size() >= MAX_QUEUED_REQUESTS) {
+                requestsRefused++;
+                return false;
+            }
+            queue.requests.add(block);
+            if (!queue.active) {
+                queue.active = true;
+                active.add(queue);
+            }
+        }
+        dispatch();
+        return true;
+    }
+
+    // A CANCEL for a request that has not been handed out yet; false if it is not queued here
+    public synchronized boolean cancel(int remotePeerID, Block block) {
+        PeerQueue queue = peers.get(remotePeerID);
+        return queue != null && queue.requests.remove(block);
+    }
+
+    // Handed-out blocks were written, cancelled or dropped by the connection
+    public void onBlocksFinished(int remotePeerID, int count) {
+        synchronized (this) {
+            PeerQueue queue = peers.get(remotePeerID);
+            if (queue == null || queue.inFlight == 0) {
+                return; // The neighbor disconnected and its blocks were already written off
+            }
+            int finished = Math.min(count, queue.inFlight);
+            queue.inFlight -= finished;
+            blocksInFlight -= finished;
+        }
+        dispatch();
+    }
+
+    public void removePeer(int remotePeerID) {
+        synchronized (this) {
+            PeerQueue queue = peers.remove(remotePeerID);
+            if (queue == null) {
+                return;
+            }
+            blocksInFlight -= queue.inFlight;
+            active.remove(queue);
+        }
+        dispatch();
+    }
+
+    // Hand out blocks while the budget allows. The blocks are chosen under the lock and sent after it is released,
+    // since sending may read the disk or call back into onBlocksFinished. Only one thread dispatches at a time: a
+    // call that arrives meanwhile (from another thread, or from a send that freed a slot) just asks it to go round
+    // again, so a flush that frees slots never recurses into dispatch.
+    private void dispatch() {
+        synchronized (this) {
+            if (dispatching) {
+                dispatchAgain = true;
+                return;
+            }
+            dispatching = true;
+        }
+        boolean finished = false;
+        try {
+            while (true) {
+                List<PeerQueue> queues = new ArrayList<>();
+                List<Block> blocks = new ArrayList<>();
+                synchronized (this) {
+                    selectBlocks(queues, blocks);
+                    if (blocks.isEmpty() && !dispatchAgain) {
+                        dispatching = false;
+                        finished = true;
+                        return;
+                    }
+                    dispatchAgain = false;
+                }
+                for (int i = 0; i < blocks.size(); i++) {
+                    if (!sender.test(queues.get(i).remotePeerID, blocks.get(i))) {
+                        onBlocksFinished(queues.get(i).remotePeerID, 1);
+                    }
+                }
+            }
+        } finally {
+            if (!finished) {
+                synchronized (this) {
+                    dispatching = false; // A send threw; let the next call dispatch
+                }
+            }
+        }
+    }
+
+    // Deficit round-robin over the active queues; called with the lock held
+    private void selectBlocks(List<PeerQueue> queues, List<Block> blocks) {
+        int blocked = 0; // Consecutive neighbors skipped because their own in-flight cap is reached
+        while (blocksInFlight < maxBlocksInFlight && !active.isEmpty() && blocked < active.size()) {
+            PeerQueue queue = active.poll();
+            if (queue.requests.isEmpty()) { // Emptied by CANCELs
+                queue.active = false;
+                queue.deficit = 0;
+                continue;
+            }
+            if (queue.inFlight >= maxPeerBlocksInFlight) {
+                active.add(queue);
+                blocked++;
+                continue;
+            }
+            // Credit carried over is capped so a neighbor held back by its in-flight cap can't bank a burst
+            queue.deficit = Math.min(queue.deficit + (long) QUANTUM * queue.weight, 2L * QUANTUM * queue.weight + queue.requests.peek().getLength());
+            while (!queue.requests.isEmpty() && queue.deficit >= queue.requests.peek().getLength()
+                    && queue.inFlight < maxPeerBlocksInFlight && blocksInFlight < maxBlocksInFlight) {
+                Block block = queue.requests.poll();
+                queue.deficit -= block.getLength();
+                queue.inFlight++;
+                queue.served++;
+                blocksInFlight++;
+                queues.add(queue);
+                blocks.add(block);
+                blocked = 0;
+            }
+            if (queue.requests.isEmpty()) {
+                queue.active = false;
+                queue.deficit = 0;
+            } else {
+                active.add(queue);
+            }
+        }
+    }
+
+    // Blocks served per neighbor (weight in brackets) and requests refused or dropped because of choking
+    public synchronized String getStats() {
+        StringBuilder served = new StringBuilder();
+        for (PeerQueue queue : peers.values()) {
+            served.append(String.format(" %d:%d[w%d]", queue.remotePeerID, queue.served, queue.weight));
+        }
+        return String.format("upload scheduler: blocks served per peer%s, %d requests refused, %d dropped on choke",
+                served.length() > 0 ? served : " none", requestsRefused, requestsDropped);
+    }
+
+    private static final class PeerQueue {
+        private final int remotePeerID;
+        private final ArrayDeque<Block> requests = new ArrayDeque<>();
+        private int weight = 0;
+        private long deficit = 0;
+        private int inFlight = 0;
+        private boolean active = false;
+        private long served = 0;
+
+        PeerQueue(int remotePeerID) {
+            this.remotePeerID = remotePeerID;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Received blocks are copied into pooled direct buffers and written by a dedicated writer thread, so disk latency
+// never holds up the I/O loops. The writer drains everything queued, sorts it by file offset and turns runs of
+// adjacent blocks into single gathering writes. When more than the configured number of bytes is waiting, the
+// network readers are paused (OP_READ off) until the writer has caught up to half of that.
+public class WriteBackQueue {
+    public static final int FSYNC_NONE = -1;        // Never force, leave it to the OS
+    public static final int FSYNC_ON_COMPLETE = 0;  // Force once, when the download completes
+
+    private static final int MAX_MERGED_BLOCKS = 64;
+
+    private final int peerID;
+    private final PieceStore store;
+    private final long capacityBytes;
+    private final int fsyncEveryPieces;
+    private final Consumer<Boolean> pauseReads;
+
+    private final LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final Thread writer;
+    private boolean readsPaused = false; // Guarded by this
+    private int piecesSinceFsync = 0;    // Writer thread only
+
+    private final AtomicLong blocksWritten = new AtomicLong();
+    private final AtomicLong writeCalls = new AtomicLong();
+    private final AtomicLong fsyncs = new AtomicLong();
+    private final AtomicLong pauses = new AtomicLong();
+
+    // fsyncEveryPieces: FSYNC_NONE, FSYNC_ON_COMPLETE, or force after every N written pieces (and on completion)
+    public WriteBackQueue(int peerID, PieceStore store, long capacityBytes, int fsyncEveryPieces, Consumer<Boolean> pauseReads) {
+        this.peerID = peerID;
+        this.store = store;
+        this.capacityBytes = capacityBytes;
+        this.fsyncEveryPieces = fsyncEveryPieces;
+        this.pauseReads = pauseReads;
+        this.writer = new Thread(this::runWriter, "peer-" + peerID + "-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Copy the block (the caller's buffer is reused for the next frame) and queue it. Never blocks; past the
+    // capacity the readers are paused instead, so at most what is already buffered on the sockets lands on top.
+    public void submit(long offset, ByteBuffer data, Consumer<Boolean> onWritten) {
+        int length = data.remaining();
+        ByteBuffer copy = takeBuffer(length);
+        copy.put(data).flip();
+        queue.add(new PendingWrite(offset, copy, onWritten));
+        queuedBytes.addAndGet(length);
+        updateReadsPaused();
+    }
+
+    // A piece has all of its blocks on disk; applies the every-N-pieces fsync policy (runs on the writer thread)
+    public void onPieceWritten() {
+        if (fsyncEveryPieces > 0 && ++piecesSinceFsync >= fsyncEveryPieces) {
+            piecesSinceFsync = 0;
+            force();
+        }
+    }
+
+    // The download is complete; every policy except FSYNC_NONE ends with the file on stable storage
+    public void onDownloadComplete() {
+        if (fsyncEveryPieces != FSYNC_NONE) {
+            force();
+        }
+    }
+
+    private void force() {
+        try {
+            store.force();
+            fsyncs.incrementAndGet();
+        } catch (IOException e) {
+            System.err.println("Error forcing piece store to disk for Peer " + peerID + ": " + e.getMessage());
+        }
+    }
+
+    private void runWriter() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            batch.sort(Comparator.comparingLong(write -> write.offset));
+
+            int start = 0;
+            while (start < batch.size()) {
+                int end = start + 1;
+                long nextOffset = batch.get(start).offset + batch.get(start).data.remaining();
+                while (end < batch.size() && end - start < MAX_MERGED_BLOCKS && batch.get(end).offset == nextOffset) {
+                    nextOffset += batch.get(end).data.remaining();
+                    end++;
+                }
+                try {
+                    writeRun(batch.subList(start, end));
+                } catch (RuntimeException e) {
+                    // This is the only writer: a bug in one run must not stop every later write
+                    System.err.println("Error in write-back for Peer " + peerID + ": " + e);
+                }
+                start = end;
+            }
+            batch.clear();
+        }
+    }
+
+    // One positional gathering write for a run of adjacent blocks, then their completion callbacks
+    private void writeRun(List<PendingWrite> run) {
+        ByteBuffer[] buffers = new ByteBuffer[run.size()];
+        long bytes = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = run.get(i).data;
+            bytes += buffers[i].remaining();
+        }
+
+        boolean written = true;
+        try {
+            store.write(run.get(0).offset, buffers);
+            writeCalls.incrementAndGet();
+            blocksWritten.addAndGet(run.size());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error writing " + run.size() + " blocks at offset " + run.get(0).offset + ": " + e.getMessage());
+            written = false;
+        }
+
+        queuedBytes.addAndGet(-bytes);
+        updateReadsPaused();
+        for (PendingWrite write : run) {
+            bufferPool.add(write.data);
+            try {
+                write.onWritten.accept(written); // Verifies the piece, and may finish the download
+            } catch (RuntimeException e) {
+                System.err.println("Error completing the block write at offset " + write.offset + " for Peer " + peerID + ": " + e);
+            }
+        }
+    }
+
+    // Decided from the current count under the lock, so a pause racing with the writer's resume can't stick
+    private synchronized void updateReadsPaused() {
+        long queued = queuedBytes.get();
+        if (!readsPaused && queued >= capacityBytes) {
+            readsPaused = true;
+            pauses.incrementAndGet();
+            pauseReads.accept(true);
+        } else if (readsPaused && queued <= capacityBytes / 2) {
+            readsPaused = false;
+            pauseReads.accept(false);
+        }
+    }
+
+    private ByteBuffer takeBuffer(int length) {
+        ByteBuffer buffer = bufferPool.poll();
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = ByteBuffer.allocateDirect(length);
+        }
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    public String getStats() {
+        return String.format("write-back: %d blocks in %d writes, %d fsyncs, readers paused %d times",
+                blocksWritten.get(), writeCalls.get(), fsyncs.get(), pauses.get());
+    }
+
+    public void shutdown() {
+        writer.interrupt();
+    }
+
+    private static final class PendingWrite {
+        private final long offset;
+        private final ByteBuffer data;
+        private final Consumer<Boolean> onWritten;
+
+        PendingWrite(long offset, ByteBuffer data, Consumer<Boolean> onWritten) {
+            this.offset = offset;
+            this.data = data;
+            this.onWritten = onWritten;
+        }
+    }
+}